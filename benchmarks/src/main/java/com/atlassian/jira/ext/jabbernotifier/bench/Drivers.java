@@ -0,0 +1,76 @@
+package com.atlassian.jira.ext.jabbernotifier.bench;
+
+import com.atlassian.jira.ext.jabbernotifier.bench.xmpp.LocalXmppServer;
+import com.atlassian.jira.ext.jabbernotifier.metrics.LatencyHistogram;
+import com.atlassian.jira.ext.jabbernotifier.metrics.Metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the command-line load drivers have in common: {@code --option value} arguments, waiting for the server to
+ * settle, and the report of every stage timer.
+ */
+public final class Drivers {
+
+    private Drivers() {
+    }
+
+    public static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    public static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    public static int intOption(Map<String, String> options, String name, int defaultValue) {
+        return Integer.parseInt(option(options, name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Wait until the server has stopped receiving messages, or sending presence, for a while.
+     *
+     * @return When the count last changed, in {@link System#nanoTime()}.
+     */
+    public static long awaitQuiet(LocalXmppServer server, boolean messages, long quietMillis) throws InterruptedException {
+        long lastCount = -1;
+        long lastChange = System.nanoTime();
+        while (System.nanoTime() - lastChange < TimeUnit.MILLISECONDS.toNanos(quietMillis)) {
+            long count = messages ? server.getMessageCount() : server.getPresencesSent();
+            if (count != lastCount) {
+                lastCount = count;
+                lastChange = System.nanoTime();
+            }
+            Thread.sleep(20);
+        }
+        return lastChange;
+    }
+
+    /**
+     * Print the percentiles of every timer that has recorded anything.
+     */
+    public static void printTimers() {
+        for (Metrics metrics : Metrics.getAll().values()) {
+            for (Map.Entry<String, LatencyHistogram> timer : metrics.getTimers().entrySet()) {
+                LatencyHistogram histogram = timer.getValue();
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                System.out.printf("%s %-12s n=%-8d p50=%6dus p99=%6dus p999=%6dus max=%6dus%n", metrics.getName(),
+                        timer.getKey(), histogram.getCount(), histogram.getPercentileMicros(50),
+                        histogram.getPercentileMicros(99), histogram.getPercentileMicros(99.9),
+                        TimeUnit.NANOSECONDS.toMicros(histogram.getMaxNanos()));
+            }
+        }
+    }
+}
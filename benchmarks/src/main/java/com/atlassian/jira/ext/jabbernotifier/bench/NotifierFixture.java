@@ -0,0 +1,300 @@
+package com.atlassian.jira.ext.jabbernotifier.bench;
+
+import com.atlassian.crowd.embedded.api.Group;
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.jira.config.ConstantsManager;
+import com.atlassian.jira.event.issue.IssueEvent;
+import com.atlassian.jira.event.type.EventType;
+import com.atlassian.jira.event.type.EventTypeManager;
+import com.atlassian.jira.ext.jabbernotifier.record.RecordedEvent;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.IssueManager;
+import com.atlassian.jira.issue.comments.Comment;
+import com.atlassian.jira.issue.comments.CommentPermissionManager;
+import com.atlassian.jira.issue.issuetype.IssueType;
+import com.atlassian.jira.issue.priority.Priority;
+import com.atlassian.jira.issue.status.Status;
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.security.PermissionManager;
+import com.atlassian.jira.security.groups.GroupManager;
+import com.atlassian.jira.user.UserPropertyManager;
+import com.atlassian.jira.workflow.JiraWorkflow;
+import com.atlassian.jira.workflow.WorkflowManager;
+import com.opensymphony.module.propertyset.PropertySet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.atlassian.jira.ext.jabbernotifier.bench.Stubs.answers;
+import static com.atlassian.jira.ext.jabbernotifier.bench.Stubs.stub;
+
+/**
+ * A small JIRA in memory: one project, an issue watched by a given number of users who all have a Jabber ID, and
+ * a pool of events on it. It can also stand in for the issues, projects and users of a recorded event stream.
+ */
+public class NotifierFixture {
+
+    public static final String JABBER_ID_PROPERTY = "jabber";
+    public static final String PROJECT_KEY = "BENCH";
+    public static final String WORKFLOW_NAME = "Support Workflow v2";
+    public static final String STAFF_GROUP = "staff";
+    public static final String PRIORITY_ID = "3";
+    public static final String BASE_URL = "http://jira.bench.local";
+
+    public static final long ISSUE_CREATED = 1L;
+    public static final long ISSUE_COMMENTED = 6L;
+    public static final long ISSUE_TRANSITIONED = 13L;
+
+    /**
+     * Which events the pool is made of.
+     */
+    public enum EventMix {
+        CREATE, COMMENT, TRANSITION, MIXED
+    }
+
+    public final User actor;
+    public final User assignee;
+    public final List<User> watchers = new ArrayList<User>();
+    public final Issue issue;
+
+    public final IssueManager issueManager;
+    public final PermissionManager permissionManager;
+    public final WorkflowManager workflowManager;
+    public final EventTypeManager eventTypeManager;
+    public final ConstantsManager constantsManager;
+    public final GroupManager groupManager;
+    public final UserPropertyManager userPropertyManager;
+    public final CommentPermissionManager commentPermissionManager;
+
+    private final Map<User, PropertySet> propertySets = new ConcurrentHashMap<User, PropertySet>();
+
+    // Replayed events: watchers are the first users of the pool, and everything else is made once per key.
+    private final List<User> watcherPool = new ArrayList<User>();
+    private final Map<Issue, List<User>> issueWatchers = new ConcurrentHashMap<Issue, List<User>>();
+    private final Map<String, Issue> issues = new HashMap<String, Issue>();
+    private final Map<String, Project> projects = new HashMap<String, Project>();
+    private final Map<String, Priority> priorities = new HashMap<String, Priority>();
+    private final Map<String, User> users = new HashMap<String, User>();
+    private final Map<Integer, String> commentBodies = new HashMap<Integer, String>();
+    private Status status;
+    private IssueType issueType;
+
+    /**
+     * @param watcherCount Number of users watching the issue.
+     */
+    public NotifierFixture(int watcherCount) {
+        actor = user("actor");
+        assignee = user("assignee");
+        for (int i = 0; i < watcherCount; i++) {
+            watchers.add(user("watcher" + i));
+        }
+
+        status = stub(Status.class, answers("getId", "1", "getName", "Open"));
+        issueType = stub(IssueType.class, answers("getId", "1", "getName", "Bug"));
+        issue = issue(PROJECT_KEY + "-1", project(PROJECT_KEY), priority(PRIORITY_ID));
+
+        issueManager = stub(IssueManager.class, answers("getWatchers", new Stubs.Answer() {
+            public Object answer(Object[] args) {
+                List<User> replayed = issueWatchers.get(args[0]);
+                return replayed != null ? replayed : watchers;
+            }
+        }));
+        permissionManager = stub(PermissionManager.class, answers("hasPermission", true));
+        final JiraWorkflow workflow = stub(JiraWorkflow.class, answers("getName", WORKFLOW_NAME));
+        workflowManager = stub(WorkflowManager.class, answers("getWorkflow", workflow));
+        // EventType.getTranslatedName needs JIRA's i18n, so the message's description is left out.
+        eventTypeManager = stub(EventTypeManager.class, answers("getEventTypes", new ArrayList<EventType>()));
+        constantsManager = stub(ConstantsManager.class, answers("getPriorityObjects", new ArrayList<Priority>()));
+        final Group staff = stub(Group.class, answers("getName", STAFF_GROUP));
+        groupManager = stub(GroupManager.class, answers(
+                "getGroupObject", staff,
+                "isUserInGroup", new Stubs.Answer() {
+                    public Object answer(Object[] args) {
+                        return args[0] == actor;
+                    }
+                }));
+        userPropertyManager = stub(UserPropertyManager.class, answers("getPropertySet", new Stubs.Answer() {
+            public Object answer(Object[] args) {
+                return propertySets.get(args[0]);
+            }
+        }));
+        commentPermissionManager = stub(CommentPermissionManager.class, answers("hasBrowsePermission", true));
+    }
+
+    private Issue issue(String key, Project project, Priority priority) {
+        return stub(Issue.class, answers(
+                "getId", 10001L + issues.size(),
+                "getKey", key,
+                "getSummary", "Notifications are slow when an issue has many watchers",
+                "getProjectObject", project,
+                "getPriorityObject", priority,
+                "getStatusObject", status,
+                "getIssueTypeObject", issueType,
+                "getAssignee", assignee));
+    }
+
+    private Project project(String key) {
+        Project project = projects.get(key);
+        if (project == null) {
+            project = stub(Project.class, answers("getKey", key, "getId", 10000L + projects.size()));
+            projects.put(key, project);
+        }
+        return project;
+    }
+
+    private Priority priority(String id) {
+        if (id == null) {
+            return null;
+        }
+        Priority priority = priorities.get(id);
+        if (priority == null) {
+            priority = stub(Priority.class, answers("getId", id, "getName", "Priority " + id));
+            priorities.put(id, priority);
+        }
+        return priority;
+    }
+
+    public static String jabberId(String userName) {
+        return userName + "@bench.local";
+    }
+
+    private User user(final String name) {
+        User user = stub(User.class, answers(
+                "getName", name,
+                "getDisplayName", "User " + name,
+                "getEmailAddress", name + "@bench.local"));
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put("jira.meta." + JABBER_ID_PROPERTY, jabberId(name));
+        propertySets.put(user, stub(PropertySet.class, answers(
+                "exists", new Stubs.Answer() {
+                    public Object answer(Object[] args) {
+                        return properties.containsKey(args[0]);
+                    }
+                },
+                "getString", new Stubs.Answer() {
+                    public Object answer(Object[] args) {
+                        return properties.get(args[0]);
+                    }
+                })));
+        return user;
+    }
+
+    /**
+     * @return A new event, timestamped now, standing in for a recorded one. An issue watched by n users is watched
+     *         by {@code watcher0} to {@code watcher<n-1>}. Not thread-safe; make the events before replaying them.
+     */
+    public IssueEvent replayEvent(RecordedEvent recorded) {
+        String key = recorded.getIssueKey() != null ? recorded.getIssueKey() : PROJECT_KEY + "-0";
+        // The same issue can gain and lose watchers over a recording.
+        String variant = key + "/" + recorded.getPriorityId() + "/" + recorded.getWatcherCount();
+        Issue replayedIssue = issues.get(variant);
+        if (replayedIssue == null) {
+            String projectKey = recorded.getProjectKey() != null ? recorded.getProjectKey() : PROJECT_KEY;
+            replayedIssue = issue(key, project(projectKey), priority(recorded.getPriorityId()));
+            issues.put(variant, replayedIssue);
+            issueWatchers.put(replayedIssue, watcherPool(recorded.getWatcherCount()));
+        }
+        User user = null;
+        if (recorded.getActor() != null) {
+            user = users.get(recorded.getActor());
+            if (user == null) {
+                user = user(recorded.getActor());
+                users.put(recorded.getActor(), user);
+            }
+        }
+        Map<String, Object> params = new HashMap<String, Object>();
+        if (recorded.isWorkflowTransition()) {
+            params.put("eventsource", "workflow");
+        }
+        Comment comment = null;
+        RecordedEvent.CommentVisibility visibility = recorded.getCommentVisibility();
+        if (visibility != RecordedEvent.CommentVisibility.NONE) {
+            comment = stub(Comment.class, answers(
+                    "getId", 20000L,
+                    "getBody", commentOfLength(recorded.getCommentLength()),
+                    "getIssue", replayedIssue,
+                    "getAuthorUser", user,
+                    "getGroupLevel", visibility == RecordedEvent.CommentVisibility.GROUP ? STAFF_GROUP : null,
+                    "getRoleLevelId", visibility == RecordedEvent.CommentVisibility.ROLE ? 10002L : null));
+        }
+        return new IssueEvent(replayedIssue, user, comment, null, null, params, recorded.getEventTypeId());
+    }
+
+    private List<User> watcherPool(int count) {
+        for (int i = watcherPool.size(); i < count; i++) {
+            watcherPool.add(i < watchers.size() ? watchers.get(i) : user("watcher" + i));
+        }
+        return new ArrayList<User>(watcherPool.subList(0, count));
+    }
+
+    private String commentOfLength(int length) {
+        String body = commentBodies.get(length);
+        if (body == null) {
+            StringBuilder text = new StringBuilder(length);
+            for (int line = 0; text.length() < length; line++) {
+                text.append("\tat com.example.Service.method").append(line)
+                        .append("(Service.java:").append(line).append(")\n");
+            }
+            body = text.substring(0, length);
+            commentBodies.put(length, body);
+        }
+        return body;
+    }
+
+    /**
+     * @return Events in a fixed pseudo-random order, so runs are comparable.
+     */
+    public IssueEvent[] events(EventMix mix, int count) {
+        Random random = new Random(42);
+        IssueEvent[] events = new IssueEvent[count];
+        for (int i = 0; i < count; i++) {
+            events[i] = newEvent(mix, random, i);
+        }
+        return events;
+    }
+
+    /**
+     * @param random Picks the kind of event if the mix is {@link EventMix#MIXED}.
+     * @param n      Sequence number of the event.
+     * @return A new event, timestamped now.
+     */
+    public IssueEvent newEvent(EventMix mix, Random random, int n) {
+        EventMix kind = mix;
+        if (mix == EventMix.MIXED) {
+            kind = EventMix.values()[random.nextInt(3)];
+        }
+        return event(kind, n);
+    }
+
+    private IssueEvent event(EventMix kind, int n) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        switch (kind) {
+            case COMMENT:
+                Comment comment = stub(Comment.class, answers(
+                        "getId", 20000L + n,
+                        "getBody", commentBody(n),
+                        "getIssue", issue,
+                        "getAuthorUser", actor));
+                return new IssueEvent(issue, actor, comment, null, null, params, ISSUE_COMMENTED);
+            case TRANSITION:
+                params.put("eventsource", "workflow");
+                return new IssueEvent(issue, actor, null, null, null, params, ISSUE_TRANSITIONED);
+            default:
+                return new IssueEvent(issue, params, actor, ISSUE_CREATED);
+        }
+    }
+
+    private static String commentBody(int n) {
+        // every tenth comment is a pasted stack trace of about 100KB
+        int lines = n % 10 == 0 ? 1500 : 3;
+        StringBuilder body = new StringBuilder("Seen again on node ").append(n).append(":\n");
+        for (int i = 0; i < lines; i++) {
+            body.append("\tat com.example.Service.method").append(i).append("(Service.java:").append(i).append(")\n");
+        }
+        return body.toString();
+    }
+}
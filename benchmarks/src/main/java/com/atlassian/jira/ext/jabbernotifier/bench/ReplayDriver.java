@@ -0,0 +1,135 @@
+package com.atlassian.jira.ext.jabbernotifier.bench;
+
+import com.atlassian.jira.event.issue.IssueEvent;
+import com.atlassian.jira.ext.jabbernotifier.bench.xmpp.LocalXmppServer;
+import com.atlassian.jira.ext.jabbernotifier.listener.BenchListener;
+import com.atlassian.jira.ext.jabbernotifier.record.EventLogReader;
+import com.atlassian.jira.ext.jabbernotifier.record.RecordedEvent;
+import com.atlassian.jira.ext.jabbernotifier.transport.BenchTransports;
+import com.atlassian.jira.ext.jabbernotifier.transport.IMTransport;
+import com.atlassian.jira.ext.jabbernotifier.transport.InMemoryTransport;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.atlassian.jira.ext.jabbernotifier.bench.Drivers.awaitQuiet;
+import static com.atlassian.jira.ext.jabbernotifier.bench.Drivers.intOption;
+import static com.atlassian.jira.ext.jabbernotifier.bench.Drivers.option;
+import static com.atlassian.jira.ext.jabbernotifier.bench.Drivers.parseOptions;
+import static com.atlassian.jira.ext.jabbernotifier.bench.Drivers.printTimers;
+
+/**
+ * Feeds an event log recorded by a listener's {@code EventRecorder} back through the listener, and reports how fast
+ * it got through it, so that versions can be compared on production load.
+ * <p>
+ * Options: {@code --log <file>} (required) {@code --speed 1} (1 replays at the recorded pace, 10 ten times as fast,
+ * 0 as fast as possible) {@code --transport memory|xmpp --threads 4 --presence roster|probe --receipts false}. The
+ * {@code xmpp} transport is a real JabberTransport connected to a {@link LocalXmppServer} on which every recipient
+ * is online.
+ */
+public class ReplayDriver {
+
+    private static final String DOMAIN = "bench.local";
+    private static final String LOGIN = "jira";
+    private static final String PASSWORD = "jira";
+    private static final long QUIET_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String log = option(options, "log", null);
+        if (log == null) {
+            throw new IllegalArgumentException("Usage: ReplayDriver --log <file> [--speed 1] [--transport memory|xmpp]");
+        }
+        double speed = Double.parseDouble(option(options, "speed", "1"));
+        String transportName = option(options, "transport", "memory");
+        int threads = intOption(options, "threads", 4);
+        String presenceMode = option(options, "presence", "roster");
+        boolean receipts = Boolean.parseBoolean(option(options, "receipts", "false"));
+
+        EventLogReader reader = new EventLogReader(new File(log));
+        List<RecordedEvent> recorded;
+        try {
+            recorded = reader.readAll();
+        } finally {
+            reader.close();
+        }
+        if (recorded.isEmpty()) {
+            System.out.println("No events in " + log);
+            return;
+        }
+        // Made up front, so that making them isn't part of the replay.
+        NotifierFixture fixture = new NotifierFixture(0);
+        IssueEvent[] events = new IssueEvent[recorded.size()];
+        int maxWatchers = 0;
+        for (int i = 0; i < events.length; i++) {
+            events[i] = fixture.replayEvent(recorded.get(i));
+            maxWatchers = Math.max(maxWatchers, recorded.get(i).getWatcherCount());
+        }
+        long firstMillis = recorded.get(0).getTimeMillis();
+        long spanMillis = recorded.get(recorded.size() - 1).getTimeMillis() - firstMillis;
+        System.out.printf("Replaying %d events recorded over %.1fs, up to %d watchers each, at %s speed%n",
+                events.length, spanMillis / 1e3, maxWatchers, speed > 0 ? speed + "x" : "full");
+
+        LocalXmppServer server = null;
+        InMemoryTransport memory = null;
+        IMTransport transport;
+        if ("xmpp".equals(transportName)) {
+            server = new LocalXmppServer(DOMAIN, LOGIN, PASSWORD);
+            boolean onRoster = "roster".equals(presenceMode);
+            server.addContact(NotifierFixture.jabberId("assignee"), IMTransport.IMStatus.ONLINE, onRoster);
+            for (int i = 0; i < maxWatchers; i++) {
+                server.addContact(NotifierFixture.jabberId("watcher" + i), IMTransport.IMStatus.ONLINE, onRoster);
+            }
+            int port = server.start();
+            server.setSendReceipts(receipts);
+            transport = BenchTransports.jabber("127.0.0.1", port, LOGIN, PASSWORD, presenceMode, receipts, 60);
+            awaitQuiet(server, false, 200);
+        } else if ("memory".equals(transportName)) {
+            memory = new InMemoryTransport(0);
+            transport = memory;
+        } else {
+            throw new IllegalArgumentException("Unknown transport " + transportName + "; use memory or xmpp");
+        }
+
+        final BenchListener listener = new BenchListener(fixture, transport, BenchListener.replayParams());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long maxLagNanos = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < events.length; i++) {
+            if (speed > 0) {
+                long offsetMillis = recorded.get(i).getTimeMillis() - firstMillis;
+                long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(offsetMillis) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } else {
+                    maxLagNanos = Math.max(maxLagNanos, -wait);
+                }
+            }
+            final IssueEvent event = events[i];
+            executor.execute(new Runnable() {
+                public void run() {
+                    listener.workflowEvent(event);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long end = server != null ? awaitQuiet(server, true, QUIET_MILLIS) : System.nanoTime();
+        double seconds = (end - start) / 1e9;
+        long messages = server != null ? server.getMessageCount() : memory.getMessageCount();
+
+        System.out.printf("Events:   %d in %.2fs, %.0f events/s, fell behind the recording by up to %dms%n",
+                events.length, seconds, events.length / seconds, TimeUnit.NANOSECONDS.toMillis(maxLagNanos));
+        System.out.printf("Messages: %d, %.0f messages/s%n", messages, messages / seconds);
+        printTimers();
+        if (server != null) {
+            server.stop();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,77 @@
+package com.atlassian.jira.ext.jabbernotifier.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory stand-ins for JIRA interfaces. JIRA's manager interfaces have dozens of methods of which the notifier
+ * calls a handful, so rather than implementing them all a stub answers the methods it is given, by name, and
+ * returns an empty value for everything else.
+ */
+public final class Stubs {
+
+    /**
+     * Computes the result of a stubbed method.
+     */
+    public interface Answer {
+        Object answer(Object[] args);
+    }
+
+    private Stubs() {
+    }
+
+    /**
+     * @param answers Method name to either an {@link Answer} or a constant result.
+     */
+    public static <T> T stub(final Class<T> type, final Map<String, ?> answers) {
+        final String name = type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(answers));
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String methodName = method.getName();
+                if (answers.containsKey(methodName)) {
+                    Object answer = answers.get(methodName);
+                    return answer instanceof Answer ? ((Answer) answer).answer(args) : answer;
+                }
+                if (methodName.equals("equals") && args != null && args.length == 1) {
+                    return proxy == args[0];
+                }
+                if (methodName.equals("hashCode") && args == null) {
+                    return System.identityHashCode(proxy);
+                }
+                if (methodName.equals("toString") && args == null) {
+                    return name;
+                }
+                return emptyValue(method.getReturnType());
+            }
+        }));
+    }
+
+    public static Map<String, Object> answers(Object... nameValuePairs) {
+        Map<String, Object> answers = new HashMap<String, Object>();
+        for (int i = 0; i < nameValuePairs.length; i += 2) {
+            answers.put((String) nameValuePairs[i], nameValuePairs[i + 1]);
+        }
+        return answers;
+    }
+
+    private static Object emptyValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0d;
+        if (type == float.class) return 0f;
+        if (type == short.class) return (short) 0;
+        if (type == byte.class) return (byte) 0;
+        if (type == char.class) return (char) 0;
+        if (type == List.class) return Collections.emptyList();
+        if (type == Set.class) return Collections.emptySet();
+        if (type == Map.class) return Collections.emptyMap();
+        return null;
+    }
+}
@@ -0,0 +1,114 @@
+package com.atlassian.jira.ext.jabbernotifier.bench.xmpp;
+
+import com.atlassian.jira.event.issue.IssueEvent;
+import com.atlassian.jira.ext.jabbernotifier.bench.NotifierFixture;
+import com.atlassian.jira.ext.jabbernotifier.listener.BenchListener;
+import com.atlassian.jira.ext.jabbernotifier.transport.BenchTransports;
+import com.atlassian.jira.ext.jabbernotifier.transport.IMTransport;
+import com.atlassian.jira.ext.jabbernotifier.transport.IMTransport.IMStatus;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.atlassian.jira.ext.jabbernotifier.bench.Drivers.awaitQuiet;
+import static com.atlassian.jira.ext.jabbernotifier.bench.Drivers.intOption;
+import static com.atlassian.jira.ext.jabbernotifier.bench.Drivers.option;
+import static com.atlassian.jira.ext.jabbernotifier.bench.Drivers.parseOptions;
+import static com.atlassian.jira.ext.jabbernotifier.bench.Drivers.printTimers;
+
+/**
+ * End-to-end load test: pushes synthetic issue events through the listener and a real JabberTransport connected to
+ * a {@link LocalXmppServer}, and reports sustained throughput and latency.
+ * <p>
+ * Options, all optional: {@code --events 10000 --rate 0 (events/s, 0 = flat out) --threads 4 --watchers 50
+ * --contacts 5000 --churn 100 (status changes/s) --mix MIXED --presence roster|probe --receipts false}.
+ */
+public class LoadDriver {
+
+    private static final String DOMAIN = "bench.local";
+    private static final String LOGIN = "jira";
+    private static final String PASSWORD = "jira";
+    private static final long QUIET_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int events = intOption(options, "events", 10000);
+        int rate = intOption(options, "rate", 0);
+        int threads = intOption(options, "threads", 4);
+        int watchers = intOption(options, "watchers", 50);
+        int contacts = intOption(options, "contacts", 5000);
+        int churn = intOption(options, "churn", 100);
+        NotifierFixture.EventMix mix = NotifierFixture.EventMix.valueOf(option(options, "mix", "MIXED"));
+        String presenceMode = option(options, "presence", "roster");
+        boolean receipts = Boolean.parseBoolean(option(options, "receipts", "false"));
+
+        NotifierFixture fixture = new NotifierFixture(watchers);
+        LocalXmppServer server = new LocalXmppServer(DOMAIN, LOGIN, PASSWORD);
+        boolean onRoster = "roster".equals(presenceMode);
+        Random statuses = new Random(7);
+        server.addContact(NotifierFixture.jabberId("assignee"), IMStatus.ONLINE, onRoster);
+        for (int i = 0; i < watchers; i++) {
+            server.addContact(NotifierFixture.jabberId("watcher" + i), randomStatus(statuses), onRoster);
+        }
+        for (int i = watchers; i < contacts; i++) {
+            server.addContact("contact" + i + "@" + DOMAIN, randomStatus(statuses), onRoster);
+        }
+        int port = server.start();
+        server.setSendReceipts(receipts);
+
+        long connectStart = System.nanoTime();
+        IMTransport transport = BenchTransports.jabber("127.0.0.1", port, LOGIN, PASSWORD, presenceMode, receipts, 60);
+        // READY means the roster has arrived; the presence of its contacts follows it.
+        awaitQuiet(server, false, 200);
+        System.out.printf("Connected in %dms with %d contacts (%s presence)%n",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart), contacts, presenceMode);
+        if (churn > 0) {
+            server.startChurn(churn, 11);
+        }
+
+        final BenchListener listener = new BenchListener(fixture, transport);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Random kinds = new Random(42);
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            if (rate > 0) {
+                long due = start + TimeUnit.SECONDS.toNanos(i) / rate;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            final IssueEvent event = fixture.newEvent(mix, kinds, i);
+            executor.execute(new Runnable() {
+                public void run() {
+                    listener.workflowEvent(event);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long submitted = System.nanoTime();
+        long lastChange = awaitQuiet(server, true, QUIET_MILLIS);
+        server.stopChurn();
+        double seconds = (lastChange - start) / 1e9;
+        long messages = server.getMessageCount();
+
+        System.out.printf("Events:   %d in %.2fs submitted, %.0f events/s%n", events, (submitted - start) / 1e9,
+                events / ((submitted - start) / 1e9));
+        System.out.printf("Messages: %d in %.2fs, %.0f messages/s, %.0f chars/message%n", messages, seconds,
+                messages / seconds, messages == 0 ? 0.0 : (double) server.getMessageChars() / messages);
+        System.out.printf("Server:   %d presence updates, %d probes, %d receipts%n", server.getPresencesSent(),
+                server.getProbeCount(), server.getReceiptsSent());
+        printTimers();
+        server.stop();
+        System.exit(0);
+    }
+
+    private static IMStatus randomStatus(Random random) {
+        int n = random.nextInt(10);
+        return n < 7 ? IMStatus.ONLINE : n < 9 ? IMStatus.AWAY : IMStatus.OFFLINE;
+    }
+}
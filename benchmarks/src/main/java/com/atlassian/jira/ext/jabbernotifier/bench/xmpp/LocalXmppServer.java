@@ -0,0 +1,482 @@
+package com.atlassian.jira.ext.jabbernotifier.bench.xmpp;
+
+import com.atlassian.jira.ext.jabbernotifier.transport.IMTransport.IMStatus;
+import org.jivesoftware.smack.util.StringUtils;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Just enough of an XMPP server, on localhost, to load-test the Jabber transport without a real one. It supports
+ * one account (the notifier's), SASL PLAIN without TLS, resource binding, a roster, presence of fake contacts whose
+ * status can be changed by script or at random, presence probes, XEP-0199 pings and XEP-0184 receipts.
+ * <p>
+ * Messages are not delivered anywhere; they are counted.
+ */
+public class LocalXmppServer {
+
+    private static final String STREAM_NS = "http://etherx.jabber.org/streams";
+    private static final String SASL_NS = "urn:ietf:params:xml:ns:xmpp-sasl";
+    private static final String BIND_NS = "urn:ietf:params:xml:ns:xmpp-bind";
+    private static final String SESSION_NS = "urn:ietf:params:xml:ns:xmpp-session";
+    private static final String ROSTER_NS = "jabber:iq:roster";
+    private static final String PING_NS = "urn:xmpp:ping";
+    private static final String RECEIPTS_NS = "urn:xmpp:receipts";
+
+    private static final long CHURN_TICK_MILLIS = 10;
+
+    private final String domain;
+    private final String login;
+    private final String password;
+
+    private final ConcurrentMap<String, IMStatus> contacts = new ConcurrentHashMap<String, IMStatus>();
+    /**
+     * The notifier account's roster: contact to group (empty for none).
+     */
+    private final ConcurrentMap<String, String> roster = new ConcurrentHashMap<String, String>();
+    private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong messageChars = new AtomicLong();
+    private final AtomicLong receiptsSent = new AtomicLong();
+    private final AtomicLong presencesSent = new AtomicLong();
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicInteger sessionIds = new AtomicInteger();
+
+    private volatile boolean sendReceipts = true;
+
+    private ServerSocket serverSocket;
+    private ScheduledExecutorService churn;
+
+    /**
+     * @param domain   Domain of the server's JIDs.
+     * @param login    The one account that can log in.
+     * @param password Its password.
+     */
+    public LocalXmppServer(String domain, String login, String password) {
+        this.domain = domain;
+        this.login = login;
+        this.password = password;
+    }
+
+    /**
+     * Listen on an ephemeral localhost port.
+     *
+     * @return The port.
+     */
+    public synchronized int start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                acceptConnections();
+            }
+        }, "local-xmpp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket.getLocalPort();
+    }
+
+    public synchronized void stop() {
+        stopChurn();
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // closing anyway
+        }
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Add a fake contact, optionally already on the notifier account's roster.
+     */
+    public void addContact(String jid, IMStatus status, boolean onRoster) {
+        contacts.put(jid, status);
+        if (onRoster) {
+            roster.put(jid, "");
+        }
+    }
+
+    /**
+     * Change a contact's status, telling every available session of the notifier account.
+     */
+    public void setStatus(String jid, IMStatus status) {
+        contacts.put(jid, status);
+        if (roster.containsKey(jid)) {
+            for (Session session : sessions) {
+                if (session.available) {
+                    session.sendPresenceOf(jid);
+                }
+            }
+        }
+    }
+
+    public IMStatus getStatus(String jid) {
+        IMStatus status = contacts.get(jid);
+        return status != null ? status : IMStatus.OFFLINE;
+    }
+
+    /**
+     * Change the status of random contacts at the given rate until {@link #stopChurn()}.
+     */
+    public synchronized void startChurn(final int changesPerSecond, long seed) {
+        stopChurn();
+        final Random random = new Random(seed);
+        final IMStatus[] statuses = {IMStatus.OFFLINE, IMStatus.ONLINE, IMStatus.BUSY, IMStatus.AWAY, IMStatus.AWAY_LONG};
+        churn = Executors.newSingleThreadScheduledExecutor(daemonThreads("local-xmpp-churn"));
+        churn.scheduleAtFixedRate(new Runnable() {
+            private double owed;
+
+            public void run() {
+                List<String> jids = new ArrayList<String>(contacts.keySet());
+                if (jids.isEmpty()) {
+                    return;
+                }
+                owed += changesPerSecond * CHURN_TICK_MILLIS / 1000.0;
+                for (; owed >= 1; owed--) {
+                    setStatus(jids.get(random.nextInt(jids.size())), statuses[random.nextInt(statuses.length)]);
+                }
+            }
+        }, CHURN_TICK_MILLIS, CHURN_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopChurn() {
+        if (churn != null) {
+            churn.shutdownNow();
+            churn = null;
+        }
+    }
+
+    /**
+     * @param sendReceipts Whether messages asking for a delivery receipt get one, as if from the recipient's client.
+     */
+    public void setSendReceipts(boolean sendReceipts) {
+        this.sendReceipts = sendReceipts;
+    }
+
+    public long getMessageCount() {
+        return messages.get();
+    }
+
+    public long getMessageChars() {
+        return messageChars.get();
+    }
+
+    public long getReceiptsSent() {
+        return receiptsSent.get();
+    }
+
+    public long getPresencesSent() {
+        return presencesSent.get();
+    }
+
+    public long getProbeCount() {
+        return probes.get();
+    }
+
+    public int getRosterSize() {
+        return roster.size();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Session session = new Session(serverSocket.accept());
+                sessions.add(session);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        session.run();
+                    }
+                }, "local-xmpp-session-" + session.id);
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // server socket closed
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static String bare(String jid) {
+        int slash = jid.indexOf('/');
+        return slash < 0 ? jid : jid.substring(0, slash);
+    }
+
+    /**
+     * One client connection.
+     */
+    private class Session {
+        final int id = sessionIds.incrementAndGet();
+        private final Socket socket;
+        private final Reader reader;
+        private final Writer writer;
+        private XmlPullParser parser;
+        private String jid;
+        volatile boolean available;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            reader = new InputStreamReader(socket.getInputStream(), "UTF-8");
+            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+        }
+
+        void run() {
+            try {
+                openStream(false);
+                while (true) {
+                    int event = parser.next();
+                    if (event == XmlPullParser.START_TAG && parser.getDepth() == 2) {
+                        handle(Stanza.read(parser));
+                    } else if (event == XmlPullParser.END_TAG && parser.getDepth() == 1
+                            || event == XmlPullParser.END_DOCUMENT) {
+                        break;
+                    }
+                }
+                send("</stream:stream>");
+            } catch (SocketException e) {
+                // client went away
+            } catch (XmlPullParserException e) {
+                // malformed or truncated stream; drop the client
+            } catch (IOException e) {
+                // client went away
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Read the client's stream header and answer with ours and the features for this stage of the login.
+         */
+        private void openStream(boolean authenticated) throws XmlPullParserException, IOException {
+            parser = new MXParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(reader);
+            int event = parser.getEventType();
+            while (!(event == XmlPullParser.START_TAG && "stream".equals(parser.getName()))) {
+                event = parser.next();
+            }
+            String features = authenticated
+                    ? "<bind xmlns='" + BIND_NS + "'/><session xmlns='" + SESSION_NS + "'/>"
+                    : "<mechanisms xmlns='" + SASL_NS + "'><mechanism>PLAIN</mechanism></mechanisms>";
+            send("<?xml version='1.0'?><stream:stream xmlns='jabber:client' xmlns:stream='" + STREAM_NS
+                    + "' from='" + domain + "' id='local" + id + (authenticated ? "b" : "a") + "' version='1.0'>"
+                    + "<stream:features>" + features + "</stream:features>");
+        }
+
+        private void handle(Stanza stanza) throws XmlPullParserException, IOException {
+            if ("auth".equals(stanza.name) && SASL_NS.equals(stanza.namespace)) {
+                authenticate(stanza);
+            } else if ("iq".equals(stanza.name)) {
+                handleIq(stanza);
+            } else if ("presence".equals(stanza.name)) {
+                handlePresence(stanza);
+            } else if ("message".equals(stanza.name)) {
+                handleMessage(stanza);
+            }
+        }
+
+        private void authenticate(Stanza auth) throws XmlPullParserException, IOException {
+            // PLAIN: [authorization id] NUL authentication id NUL password
+            String[] parts = new String(StringUtils.decodeBase64(auth.text.toString().trim()), "UTF-8").split("\u0000", -1);
+            String user = parts.length == 3 ? parts[1] : "";
+            if (user.contains("@")) {
+                user = user.substring(0, user.indexOf('@'));
+            }
+            if (parts.length == 3 && login.equals(user) && password.equals(parts[2])) {
+                send("<success xmlns='" + SASL_NS + "'/>");
+                // the client restarts the stream; nothing else is in flight, so a fresh parser is safe
+                openStream(true);
+            } else {
+                send("<failure xmlns='" + SASL_NS + "'><not-authorized/></failure>");
+            }
+        }
+
+        private void handleIq(Stanza iq) throws IOException {
+            String type = iq.attribute("type");
+            String id = iq.attribute("id");
+            if ("result".equals(type) || "error".equals(type)) {
+                return;
+            }
+            Stanza bind = iq.child("bind", BIND_NS);
+            Stanza query = iq.child("query", ROSTER_NS);
+            if (bind != null) {
+                String resource = bind.childText("resource");
+                jid = login + "@" + domain + "/" + (resource != null && resource.length() > 0 ? resource : "local" + id);
+                send("<iq type='result' id='" + Stanza.escape(id) + "'><bind xmlns='" + BIND_NS + "'><jid>"
+                        + Stanza.escape(jid) + "</jid></bind></iq>");
+            } else if (iq.child("session", SESSION_NS) != null || iq.child("ping", PING_NS) != null) {
+                send("<iq type='result' id='" + Stanza.escape(id) + "'/>");
+            } else if (query != null && "get".equals(type)) {
+                StringBuilder result = new StringBuilder("<iq type='result' id='").append(Stanza.escape(id))
+                        .append("'><query xmlns='" + ROSTER_NS + "'>");
+                for (Map.Entry<String, String> entry : roster.entrySet()) {
+                    appendItem(result, entry.getKey(), "both", entry.getValue());
+                }
+                send(result.append("</query></iq>").toString());
+            } else if (query != null) {
+                send("<iq type='result' id='" + Stanza.escape(id) + "'/>");
+                for (Stanza item : query.children) {
+                    String contact = item.attribute("jid");
+                    if ("remove".equals(item.attribute("subscription"))) {
+                        roster.remove(contact);
+                        pushRosterItem(contact, "remove", "");
+                    } else {
+                        String group = item.childText("group");
+                        roster.put(contact, group != null ? group : "");
+                        pushRosterItem(contact, "both", group);
+                    }
+                }
+            } else {
+                send("<iq type='error' id='" + Stanza.escape(id) + "'><error type='cancel'>"
+                        + "<service-unavailable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></iq>");
+            }
+        }
+
+        private void appendItem(StringBuilder sb, String contact, String subscription, String group) {
+            sb.append("<item jid='").append(Stanza.escape(contact)).append("' subscription='").append(subscription).append("'");
+            if (group != null && group.length() > 0) {
+                sb.append("><group>").append(Stanza.escape(group)).append("</group></item>");
+            } else {
+                sb.append("/>");
+            }
+        }
+
+        private void pushRosterItem(String contact, String subscription, String group) throws IOException {
+            StringBuilder push = new StringBuilder("<iq type='set' id='push").append(id).append("'><query xmlns='" + ROSTER_NS + "'>");
+            appendItem(push, contact, subscription, group);
+            send(push.append("</query></iq>").toString());
+        }
+
+        private void handlePresence(Stanza presence) throws IOException {
+            String type = presence.attribute("type");
+            String to = presence.attribute("to");
+            if (to == null) {
+                if (type == null || "available".equals(type)) {
+                    boolean initial = !available;
+                    available = true;
+                    if (initial) {
+                        for (String contact : roster.keySet()) {
+                            if (getStatus(contact) != IMStatus.OFFLINE) {
+                                sendPresenceOf(contact);
+                            }
+                        }
+                    }
+                } else if ("unavailable".equals(type)) {
+                    available = false;
+                }
+                return;
+            }
+            String contact = bare(to);
+            if ("probe".equals(type)) {
+                probes.incrementAndGet();
+                sendPresenceOf(contact);
+            } else if ("subscribe".equals(type)) {
+                send("<presence type='subscribed' from='" + Stanza.escape(contact) + "'/>");
+                sendPresenceOf(contact);
+            }
+        }
+
+        private void handleMessage(Stanza message) throws IOException {
+            String to = message.attribute("to");
+            String body = message.childText("body");
+            messages.incrementAndGet();
+            if (body != null) {
+                messageChars.addAndGet(body.length());
+            }
+            if (sendReceipts && message.child("request", RECEIPTS_NS) != null && message.attribute("id") != null) {
+                send("<message from='" + Stanza.escape(to) + "/sim' to='" + Stanza.escape(jid) + "'><received xmlns='"
+                        + RECEIPTS_NS + "' id='" + Stanza.escape(message.attribute("id")) + "'/></message>");
+                receiptsSent.incrementAndGet();
+            }
+        }
+
+        void sendPresenceOf(String contact) {
+            IMStatus status = getStatus(contact);
+            String from = Stanza.escape(contact) + "/sim";
+            String stanza;
+            switch (status) {
+                case OFFLINE:
+                    stanza = "<presence from='" + from + "' type='unavailable'/>";
+                    break;
+                case ONLINE:
+                    stanza = "<presence from='" + from + "'/>";
+                    break;
+                default:
+                    stanza = "<presence from='" + from + "'><show>" + show(status) + "</show></presence>";
+            }
+            try {
+                send(stanza);
+                presencesSent.incrementAndGet();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private String show(IMStatus status) {
+            switch (status) {
+                case BUSY:
+                    return "dnd";
+                case AWAY_LONG:
+                    return "xa";
+                default:
+                    return "away";
+            }
+        }
+
+        synchronized void send(String xml) throws IOException {
+            writer.write(xml);
+            writer.flush();
+        }
+
+        void close() {
+            sessions.remove(this);
+            available = false;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+}
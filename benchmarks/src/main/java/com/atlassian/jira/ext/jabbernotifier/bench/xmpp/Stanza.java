@@ -0,0 +1,84 @@
+package com.atlassian.jira.ext.jabbernotifier.bench.xmpp;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An XML element read off an XMPP stream, with just enough structure to answer it.
+ */
+class Stanza {
+    final String name;
+    final String namespace;
+    final Map<String, String> attributes = new LinkedHashMap<String, String>();
+    final List<Stanza> children = new ArrayList<Stanza>();
+    final StringBuilder text = new StringBuilder();
+
+    Stanza(String name, String namespace) {
+        this.name = name;
+        this.namespace = namespace;
+    }
+
+    /**
+     * Read the element the parser is positioned on, up to and including its end tag.
+     */
+    static Stanza read(XmlPullParser parser) throws XmlPullParserException, IOException {
+        Stanza stanza = new Stanza(parser.getName(), parser.getNamespace());
+        for (int i = 0; i < parser.getAttributeCount(); i++) {
+            stanza.attributes.put(parser.getAttributeName(i), parser.getAttributeValue(i));
+        }
+        while (true) {
+            int event = parser.next();
+            if (event == XmlPullParser.START_TAG) {
+                stanza.children.add(read(parser));
+            } else if (event == XmlPullParser.TEXT) {
+                stanza.text.append(parser.getText());
+            } else if (event == XmlPullParser.END_TAG || event == XmlPullParser.END_DOCUMENT) {
+                return stanza;
+            }
+        }
+    }
+
+    String attribute(String attributeName) {
+        return attributes.get(attributeName);
+    }
+
+    /**
+     * @return The first child with the given name and, if not null, namespace.
+     */
+    Stanza child(String childName, String childNamespace) {
+        for (Stanza child : children) {
+            if (child.name.equals(childName) && (childNamespace == null || childNamespace.equals(child.namespace))) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The first child in the given namespace, whatever its name.
+     */
+    Stanza childIn(String childNamespace) {
+        for (Stanza child : children) {
+            if (childNamespace.equals(child.namespace)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    String childText(String childName) {
+        Stanza child = child(childName, null);
+        return child != null ? child.text.toString().trim() : null;
+    }
+
+    static String escape(String value) {
+        return StringUtils.escapeForXML(value);
+    }
+}
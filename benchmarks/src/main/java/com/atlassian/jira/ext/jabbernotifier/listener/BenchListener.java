@@ -0,0 +1,125 @@
+package com.atlassian.jira.ext.jabbernotifier.listener;
+
+import com.atlassian.jira.ext.jabbernotifier.bench.NotifierFixture;
+import com.atlassian.jira.ext.jabbernotifier.bench.Stubs;
+import com.atlassian.jira.ext.jabbernotifier.transport.IMTransport;
+import com.atlassian.velocity.VelocityManager;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A {@link JabberNotifierListener} wired to a {@link NotifierFixture} instead of JIRA's components, configured with
+ * every trigger condition switched on.
+ */
+public class BenchListener extends JabberNotifierListener {
+
+    private static final String ASSIGNEE_MATCH = "assignee";
+    private static final String WATCHERS_MATCH = "watchers";
+
+    public BenchListener(NotifierFixture fixture, IMTransport transport) {
+        this(fixture, transport, params());
+    }
+
+    public BenchListener(NotifierFixture fixture, IMTransport transport, Map<String, String> params) {
+        super(fixture.issueManager, fixture.permissionManager, fixture.workflowManager, fixture.eventTypeManager,
+                fixture.constantsManager, fixture.groupManager, fixture.userPropertyManager);
+        this.transport = transport;
+        // init() looks this up from JIRA, and also connects the real transport, so it is skipped.
+        setField("commentPermissionManager", fixture.commentPermissionManager);
+        setField("velocityManager", velocityManager());
+        initListener(params);
+    }
+
+    /**
+     * @return The recipients the listener is configured with.
+     */
+    static List<String> usersToNotify() {
+        return Arrays.asList(ASSIGNEE_MATCH, WATCHERS_MATCH);
+    }
+
+    static Map<String, String> params() {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(IM_ID_PROPERTY, NotifierFixture.JABBER_ID_PROPERTY);
+        params.put(USERS_TO_NOTIFY, ASSIGNEE_MATCH + ", " + WATCHERS_MATCH);
+        params.put(TRIGGER_EVENTS, NotifierFixture.ISSUE_CREATED + "," + NotifierFixture.ISSUE_COMMENTED + ","
+                + NotifierFixture.ISSUE_TRANSITIONED);
+        params.put(PROJECT_KEYS, NotifierFixture.PROJECT_KEY);
+        params.put(PRIORITIES, NotifierFixture.PRIORITY_ID);
+        params.put(WORKFLOW_NAME_REGEXP, "Support Workflow v.*");
+        params.put(REQUIRED_GROUPS, NotifierFixture.STAFF_GROUP);
+        params.put(IGNORED_ME, "true");
+        // Notify on the calling thread, so that a benchmark times the notifications and not a hand-off.
+        params.put(TRANSPORT_THREADS, "0");
+        return params;
+    }
+
+    /**
+     * @return The recipients of {@link #params()} without any of the conditions, which were written for the fixture's
+     *         own issue and would filter out most recorded events. Replays measure what the events cost to deliver.
+     */
+    public static Map<String, String> replayParams() {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(IM_ID_PROPERTY, NotifierFixture.JABBER_ID_PROPERTY);
+        params.put(USERS_TO_NOTIFY, ASSIGNEE_MATCH + ", " + WATCHERS_MATCH);
+        params.put(IGNORED_ME, "true");
+        // Notify on the calling thread, so that a benchmark times the notifications and not a hand-off.
+        params.put(TRANSPORT_THREADS, "0");
+        return params;
+    }
+
+    @Override
+    protected String getBaseUrl() {
+        return NotifierFixture.BASE_URL;
+    }
+
+    /**
+     * @return A VelocityManager that renders the way JIRA's does: the template is looked up in the engine's cache and
+     *         merged with a new context, into a new writer, on every call.
+     */
+    private static VelocityManager velocityManager() {
+        final VelocityEngine engine = new VelocityEngine();
+        Properties properties = new Properties();
+        properties.setProperty("resource.loader", "class");
+        properties.setProperty("class.resource.loader.class", "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+        properties.setProperty("class.resource.loader.cache", "true");
+        properties.setProperty("runtime.log.logsystem.class", "org.apache.velocity.runtime.log.NullLogChute");
+        try {
+            engine.init(properties);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not start Velocity", e);
+        }
+        Map<String, Object> answers = new HashMap<String, Object>();
+        answers.put("getBody", new Stubs.Answer() {
+            @SuppressWarnings("unchecked")
+            public Object answer(Object[] args) {
+                StringWriter writer = new StringWriter();
+                try {
+                    engine.mergeTemplate(args[0] + (String) args[1], "UTF-8",
+                            new VelocityContext((Map<String, Object>) args[2]), writer);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Could not render " + args[1], e);
+                }
+                return writer.toString();
+            }
+        });
+        return Stubs.stub(VelocityManager.class, answers);
+    }
+
+    private void setField(String name, Object value) {
+        try {
+            Field field = JabberNotifierListener.class.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(this, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("JabberNotifierListener has no field " + name, e);
+        }
+    }
+}
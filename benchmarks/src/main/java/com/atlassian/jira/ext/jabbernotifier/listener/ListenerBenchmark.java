@@ -0,0 +1,102 @@
+package com.atlassian.jira.ext.jabbernotifier.listener;
+
+import com.atlassian.jira.event.issue.IssueEvent;
+import com.atlassian.jira.ext.jabbernotifier.bench.NotifierFixture;
+import com.atlassian.jira.ext.jabbernotifier.transport.InMemoryTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The listener's stages, and the whole of {@link JabberNotifierListener#workflowEvent}, against in-memory JIRA
+ * components and a transport that only counts messages.
+ * <p>
+ * {@link #getTemplatedMsg} renders through the precompiled template and {@link #getTemplatedMsgWithVelocityManager}
+ * through a VelocityManager that works the way JIRA's does, on the same events. {@link #main} runs the two with
+ * JMH's GC profiler, whose {@code gc.alloc.rate.norm} is the bytes allocated per message; the same is reported for
+ * any run of the shaded jar given {@code -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerBenchmark {
+
+    private static final int EVENT_POOL_SIZE = 64;
+
+    @Param({"1", "10", "100", "1000"})
+    public int watchers;
+
+    @Param({"CREATE", "COMMENT", "TRANSITION", "MIXED"})
+    public NotifierFixture.EventMix eventMix;
+
+    private NotifierFixture fixture;
+    private JabberNotifierListener listener;
+    private IssueEvent[] events;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        fixture = new NotifierFixture(watchers);
+        listener = new BenchListener(fixture, new InMemoryTransport(0));
+        events = fixture.events(eventMix, EVENT_POOL_SIZE);
+    }
+
+    private IssueEvent nextEvent() {
+        IssueEvent event = events[next];
+        next = (next + 1) % events.length;
+        return event;
+    }
+
+    @Benchmark
+    public boolean meetsTriggerConditions() {
+        return listener.meetsTriggerConditions(nextEvent());
+    }
+
+    @Benchmark
+    public Set<JabberNotifierListener.Recipient> getRecipients() {
+        return listener.getRecipients(BenchListener.usersToNotify(), fixture.issue);
+    }
+
+    @Benchmark
+    public String getTemplatedMsg() {
+        return listener.getTemplatedMsg(nextEvent(), fixture.assignee);
+    }
+
+    @Benchmark
+    public String getTemplatedMsgWithVelocityManager() {
+        return listener.getTemplatedMsgWithVelocityManager(nextEvent(), fixture.assignee);
+    }
+
+    @Benchmark
+    public void workflowEvent() {
+        listener.workflowEvent(nextEvent());
+    }
+
+    /**
+     * Compare the time and allocation of the two ways of rendering a message.
+     */
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ListenerBenchmark.class.getName() + ".getTemplatedMsg.*")
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,43 @@
+package com.atlassian.jira.ext.jabbernotifier.transport;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates connected {@link JabberTransport}s for benchmarks and load tests.
+ */
+public final class BenchTransports {
+
+    private BenchTransports() {
+    }
+
+    /**
+     * Create a transport and wait until it is ready.
+     *
+     * @param presenceMode "roster" or "probe".
+     * @throws IllegalStateException If the transport isn't ready within the timeout.
+     */
+    public static IMTransport jabber(String server, int port, String login, String password, String presenceMode,
+                                     boolean receipts, long timeoutSeconds) throws InterruptedException {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(JabberTransport.XMPP_SERVER, server);
+        params.put(JabberTransport.XMPP_PORT, String.valueOf(port));
+        params.put(JabberTransport.XMPP_LOGIN, login);
+        params.put(JabberTransport.XMPP_PASSWORD, password);
+        params.put(JabberTransport.XMPP_PRESENCE_MODE, presenceMode);
+        params.put(JabberTransport.XMPP_DELIVERY_RECEIPTS, String.valueOf(receipts));
+        IMTransport transport = JabberTransport.create(params);
+        final CountDownLatch ready = new CountDownLatch(1);
+        transport.warmUp(new Runnable() {
+            public void run() {
+                ready.countDown();
+            }
+        });
+        if (!ready.await(timeoutSeconds, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Could not connect to " + server + ":" + port + " within " + timeoutSeconds + "s");
+        }
+        return transport;
+    }
+}
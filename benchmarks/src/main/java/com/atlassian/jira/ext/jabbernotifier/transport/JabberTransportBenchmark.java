@@ -0,0 +1,92 @@
+package com.atlassian.jira.ext.jabbernotifier.transport;
+
+import com.atlassian.jira.ext.jabbernotifier.bench.xmpp.LocalXmppServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Presence lookups and sends of a {@link JabberTransport}. By default it is connected to a {@link LocalXmppServer}
+ * started for the benchmark, on whose roster all recipients are. To use a real server instead, set the system
+ * properties {@code jabber.bench.server}, {@code .port}, {@code .login} and {@code .password}; recipients are then
+ * {@code bench0@<server>} to {@code bench<n-1>@<server>}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JabberTransportBenchmark {
+
+    private static final long READY_TIMEOUT_SECONDS = 60;
+
+    @Param({"10", "1000"})
+    public int recipients;
+
+    @Param({"roster", "probe"})
+    public String presenceMode;
+
+    private LocalXmppServer localServer;
+    private IMTransport transport;
+    private String[] jids;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        String server = System.getProperty("jabber.bench.server");
+        int port;
+        if (server == null) {
+            server = "127.0.0.1";
+            localServer = new LocalXmppServer("bench.local", "jira", "jira");
+            port = localServer.start();
+        } else {
+            port = Integer.parseInt(System.getProperty("jabber.bench.port", "5222"));
+        }
+        String domain = localServer != null ? "bench.local" : server;
+        jids = new String[recipients];
+        for (int i = 0; i < recipients; i++) {
+            jids[i] = "bench" + i + "@" + domain;
+            if (localServer != null) {
+                localServer.addContact(jids[i], i % 10 == 0 ? IMTransport.IMStatus.OFFLINE : IMTransport.IMStatus.ONLINE, true);
+            }
+        }
+        transport = BenchTransports.jabber(server, port, System.getProperty("jabber.bench.login", "jira"),
+                System.getProperty("jabber.bench.password", "jira"), presenceMode, false, READY_TIMEOUT_SECONDS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (localServer != null) {
+            localServer.stop();
+        }
+    }
+
+    private String nextJid() {
+        String jid = jids[next];
+        next = (next + 1) % jids.length;
+        return jid;
+    }
+
+    @Benchmark
+    public IMTransport.IMStatus getContactStatus() throws JabberServerConnectionException {
+        return transport.getContactStatus(nextJid());
+    }
+
+    @Benchmark
+    public void sendMessage() throws JabberServerConnectionException {
+        transport.sendMessage(nextJid(), "BENCH-1 was updated", System.currentTimeMillis());
+    }
+}
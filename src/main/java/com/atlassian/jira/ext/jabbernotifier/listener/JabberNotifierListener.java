@@ -10,13 +10,23 @@ import com.atlassian.jira.event.issue.AbstractIssueEventListener;
 import com.atlassian.jira.event.issue.IssueEvent;
 import com.atlassian.jira.event.type.EventType;
 import com.atlassian.jira.event.type.EventTypeManager;
+import com.atlassian.jira.ext.jabbernotifier.metrics.LatencyHistogram;
+import com.atlassian.jira.ext.jabbernotifier.metrics.Metrics;
+import com.atlassian.jira.ext.jabbernotifier.record.EventRecorder;
+import com.atlassian.jira.ext.jabbernotifier.render.ChangeSummary;
+import com.atlassian.jira.ext.jabbernotifier.render.EventContext;
+import com.atlassian.jira.ext.jabbernotifier.render.LazyContext;
+import com.atlassian.jira.ext.jabbernotifier.render.NotificationRenderer;
+import com.atlassian.jira.ext.jabbernotifier.render.Utf8Truncator;
+import com.atlassian.jira.ext.jabbernotifier.transport.Bulkhead;
 import com.atlassian.jira.ext.jabbernotifier.transport.IMTransport;
 import com.atlassian.jira.ext.jabbernotifier.transport.IMTransport.IMStatus;
+import com.atlassian.jira.ext.jabbernotifier.transport.IMTransportFactory;
 import com.atlassian.jira.ext.jabbernotifier.transport.JabberServerConnectionException;
 import com.atlassian.jira.ext.jabbernotifier.transport.JabberTransport;
+import com.atlassian.jira.ext.jabbernotifier.transport.JabberTransportFactory;
+import com.atlassian.jira.ext.jabbernotifier.transport.TransportFactories;
 import com.atlassian.jira.issue.Issue;
-import com.atlassian.jira.issue.changehistory.ChangeHistoryManager;
-import com.atlassian.jira.issue.changehistory.ChangeHistory;
 import com.atlassian.jira.issue.IssueManager;
 import com.atlassian.jira.issue.comments.CommentPermissionManager;
 import com.atlassian.jira.issue.priority.Priority;
@@ -33,7 +43,11 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
 import org.apache.velocity.exception.VelocityException;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -49,13 +63,44 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
 
     static final String TRIGGER_EVENTS = "Events triggering message (default: all events)";
     static final String USERS_TO_NOTIFY = "Users to notify";
-    static final String NOTIFIABLE_STATUSES = "Notifiable Statuses (Default: ONLINE,AWAY)";
-    private static final String PROJECT_KEYS = "Only notify for issues in projects with these keys (default: all projects)";
+    static final String NOTIFIABLE_STATUSES = "Notifiable Statuses (Default: ONLINE,AWAY,UNKNOWN)";
+
+    /**
+     * Key of {@link #NOTIFIABLE_STATUSES} in listeners configured before UNKNOWN became a default.
+     */
+    private static final String NOTIFIABLE_STATUSES_OLD = "Notifiable Statuses (Default: ONLINE,AWAY)";
+    static final String PROJECT_KEYS = "Only notify for issues in projects with these keys (default: all projects)";
     static final String PRIORITIES = "Only notify for issues with these priorities (default: all priorities)";
     static final String WORKFLOW_NAME_REGEXP = "Only notify for issues in workflow (regex on name; default: all workflows)";
     static final String REQUIRED_GROUPS = "Only notify for events generated by user in group (default: any group)";
     static final String IGNORED_GROUPS = "Ignore events generated by users in any of these groups (default: none)";
     static final String IGNORED_ME = "Ignore events generated by my own changes true/false (default: true)";
+    static final String MAX_MESSAGE_BYTES = "Maximum message size in bytes (default: 16384; 0 for no limit)";
+    static final String TRANSPORT = "Transport: jabber, memory, or the class name of an IMTransportFactory (default: jabber)";
+    static final String TRANSPORT_THREADS = "Notification threads per transport, 0 to notify on JIRA's event thread (default: 1)";
+    static final String TRANSPORT_QUEUE = "Events queued per transport before new ones are dropped (default: 1000)";
+    static final String RECORD_EVENTS_FILE = "Record incoming events to this file, for replay in load tests (default: off)";
+
+    private static final int MAX_PENDING_EVENTS = 1000;
+
+    private static final int DEFAULT_MAX_MESSAGE_BYTES = 16384;
+
+    /**
+     * Key of {@link #TRANSPORT_THREADS} in listeners configured when the default was 2.
+     */
+    private static final String TRANSPORT_THREADS_OLD = "Notification threads per transport, 0 to notify on JIRA's event thread (default: 2)";
+
+    /**
+     * A single thread sends notifications in the order the events came in; more may overtake each other.
+     */
+    private static final int DEFAULT_TRANSPORT_THREADS = 1;
+
+    private static final int DEFAULT_TRANSPORT_QUEUE = 1000;
+
+    /**
+     * Part of the message budget kept for everything but the comment.
+     */
+    private static final int MESSAGE_HEADER_BYTES = 2048;
 
     private Set<Long> triggerEventIDs;
     protected Set<Long> priorityIDs;
@@ -66,6 +111,7 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
     private Set<Group> requiredGroups;
     private Set<Group> ignoredGroups;
     private boolean ignoreMyEvents = true;
+    private int maxMessageBytes = DEFAULT_MAX_MESSAGE_BYTES;
 
     private String imIDProperty = null;
 
@@ -73,14 +119,45 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
     protected PermissionManager permissionManager;
     protected WorkflowManager workflowManager;
     private VelocityManager velocityManager;
+    private NotificationRenderer renderer;
     private CommentPermissionManager commentPermissionManager;
     private EventTypeManager eventTypeManager;
     private ConstantsManager constantsManager;
     private GroupManager groupManager;
-    private UserPropertyManager userPropertyManager = (UserPropertyManager) ComponentManager.getInstance().getUserPropertyManager();
+    private UserPropertyManager userPropertyManager;
+
+    protected IMTransportFactory transportFactory = new JabberTransportFactory();
 
     protected IMTransport transport;
 
+    /**
+     * Where notifications through the transport run, set up with the listener.
+     */
+    private Bulkhead bulkhead;
+
+    private ListenerMetrics metrics = new ListenerMetrics(Metrics.detached("listener"));
+
+    /**
+     * Name the metrics are registered under, once the listener has been configured.
+     */
+    private String metricsName;
+
+    private EventRecorder recorder;
+
+    /**
+     * Matching events that arrived while the transport was still warming up.
+     */
+    private final BlockingQueue<IssueEvent> pendingEvents = new LinkedBlockingQueue<IssueEvent>(MAX_PENDING_EVENTS);
+
+    /**
+     * Registered with the transport whenever events are queued, to notify them once it is ready.
+     */
+    private final Runnable drainPendingEvents = new Runnable() {
+        public void run() {
+            notifyPendingEvents();
+        }
+    };
+
     private final String tpl = "templates/im/notify.vm";
 
     final String ASSIGNEE_MATCH_TOKEN = "assignee";
@@ -92,25 +169,37 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
                 ComponentManager.getInstance().getWorkflowManager(),
                 ComponentManager.getInstance().getEventTypeManager(),
                 ComponentManager.getInstance().getConstantsManager(),
-                ComponentManager.getComponentInstanceOfType(GroupManager.class));
+                ComponentManager.getComponentInstanceOfType(GroupManager.class),
+                ComponentManager.getInstance().getUserPropertyManager());
     }
 
     public JabberNotifierListener(IssueManager issueManager, PermissionManager permissionManager, WorkflowManager workflowManager,
                                   EventTypeManager eventTypeManager, ConstantsManager constantsManager,GroupManager groupManager) {
+        this(issueManager, permissionManager, workflowManager, eventTypeManager, constantsManager, groupManager,
+                ComponentManager.getInstance().getUserPropertyManager());
+    }
+
+    public JabberNotifierListener(IssueManager issueManager, PermissionManager permissionManager, WorkflowManager workflowManager,
+                                  EventTypeManager eventTypeManager, ConstantsManager constantsManager, GroupManager groupManager,
+                                  UserPropertyManager userPropertyManager) {
         this.issueManager = issueManager;
         this.permissionManager = permissionManager;
         this.workflowManager = workflowManager;
         this.eventTypeManager = eventTypeManager;
         this.constantsManager = constantsManager;
         this.groupManager = groupManager;
+        this.userPropertyManager = userPropertyManager;
+        this.renderer = NotificationRenderer.create(tpl);
         this.transport = new JabberTransport();
-        this.notifiableStatuses = EnumSet.of(IMStatus.ONLINE, IMStatus.AWAY);
+        // UNKNOWN only occurs in probe presence mode, before a contact's first probe is answered; the server stores
+        // the message if the contact turns out to be offline.
+        this.notifiableStatuses = EnumSet.of(IMStatus.ONLINE, IMStatus.AWAY, IMStatus.UNKNOWN);
     }
 
     @Override
     public String[] getAcceptedParams() {
         List<String> params = new ArrayList<String>();
-        params.addAll(Arrays.asList(transport.getAcceptedParams()));
+        params.addAll(Arrays.asList(TransportFactories.getAcceptedParams(transportFactory)));
         params.addAll(Arrays.asList(getAcceptedListenerParams()));
         return params.toArray(new String[params.size()]);
     }
@@ -132,16 +221,25 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
        /* if (params == null || params.isEmpty()) {
             return;
         }*/
-        this.transport = JabberTransport.create(params);
-        try {
-            transport.connect();
-        } catch (JabberServerConnectionException e) {
-            if (log.isDebugEnabled())
-                log.debug(e.getMessage(), e);
-            else
-                log.error(e.getMessage());
+        if (params.containsKey(TRANSPORT)) {
+            try {
+                transportFactory = TransportFactories.forName((String) params.get(TRANSPORT));
+            } catch (IllegalArgumentException e) {
+                log.error(e.getMessage() + "; using the " + TransportFactories.JABBER + " transport", e);
+            }
+        }
+        this.transport = transportFactory.create(params);
+        // Listeners have no name of their own, so the metrics are named after the account the listener sends from;
+        // a listener re-created for the same account keeps counting where the old one left off.
+        String name = "listener:" + transport.getLogin() + "@" + transport.getServer();
+        if (metricsName != null && !metricsName.equals(name)) {
+            Metrics.release(metricsName);
         }
+        metricsName = name;
+        metrics = new ListenerMetrics(Metrics.forComponent(name));
         initListener(params);
+        // Connecting, logging in and fetching the roster can take a while; don't hold up JIRA startup.
+        transport.warmUp(drainPendingEvents);
     }
 
     @Override
@@ -179,8 +277,9 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
             String regexStr = (String) params.get(WORKFLOW_NAME_REGEXP);
             workflowNameRegex = Pattern.compile(regexStr);
         }
-        if (params.containsKey(NOTIFIABLE_STATUSES)) {
-            String statusesStr = (" " + params.get(NOTIFIABLE_STATUSES)).trim()
+        String statusesKey = params.containsKey(NOTIFIABLE_STATUSES) ? NOTIFIABLE_STATUSES : NOTIFIABLE_STATUSES_OLD;
+        if (params.containsKey(statusesKey)) {
+            String statusesStr = (" " + params.get(statusesKey)).trim()
                     .toUpperCase();
             EnumSet<IMStatus> statuses = stringToEnumSet(IMStatus.class,
                     statusesStr, "\\b");
@@ -246,6 +345,33 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
             ignoreMyEvents = !"false".equals(params.get(IGNORED_ME));
         }
 
+        maxMessageBytes = intParam(params, MAX_MESSAGE_BYTES, maxMessageBytes);
+
+        int transportThreads = intParam(params, params.containsKey(TRANSPORT_THREADS) ? TRANSPORT_THREADS : TRANSPORT_THREADS_OLD,
+                DEFAULT_TRANSPORT_THREADS);
+        int transportQueue = intParam(params, TRANSPORT_QUEUE, DEFAULT_TRANSPORT_QUEUE);
+        // Acquired before the old one is released, so that a listener keeping its transport keeps its bulkhead.
+        Bulkhead previousBulkhead = bulkhead;
+        bulkhead = Bulkhead.forTransport(transport, transportThreads, transportQueue);
+        if (previousBulkhead != null) {
+            previousBulkhead.release();
+        }
+
+        // Acquired before the old one is released, so that recording to the same file goes on without a new session.
+        EventRecorder previousRecorder = recorder;
+        recorder = null;
+        if (params.containsKey(RECORD_EVENTS_FILE)) {
+            String path = ((String) params.get(RECORD_EVENTS_FILE)).trim();
+            try {
+                recorder = EventRecorder.forFile(path);
+            } catch (IOException e) {
+                log.error("Can't record events to '" + path + "': " + e);
+            }
+        }
+        if (previousRecorder != null) {
+            previousRecorder.release();
+        }
+
         if (params.containsKey(PRIORITIES)) {
             String[] priorityStrs = ((String) params.get(PRIORITIES)).split(PARAM_SPLIT_REGEX); // any
             // unescaped
@@ -285,10 +411,21 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
         // when no user feedback is possible. Listeners suck..
     }
 
+    private static int intParam(Map params, String name, int defaultValue) {
+        if (params.containsKey(name)) {
+            try {
+                return Integer.parseInt(((String) params.get(name)).trim());
+            } catch (NumberFormatException nfe) {
+                log.error("Invalid " + name + " '" + params.get(name) + "'; using " + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
     public String[] getAcceptedListenerParams() {
         return new String[]
                 {
-                        USERS_TO_NOTIFY, IM_ID_PROPERTY, NOTIFIABLE_STATUSES, TRIGGER_EVENTS, PROJECT_KEYS, PRIORITIES, WORKFLOW_NAME_REGEXP, REQUIRED_GROUPS, IGNORED_GROUPS, IGNORED_ME
+                        USERS_TO_NOTIFY, IM_ID_PROPERTY, NOTIFIABLE_STATUSES, TRIGGER_EVENTS, PROJECT_KEYS, PRIORITIES, WORKFLOW_NAME_REGEXP, REQUIRED_GROUPS, IGNORED_GROUPS, IGNORED_ME, MAX_MESSAGE_BYTES, TRANSPORT, TRANSPORT_THREADS, TRANSPORT_QUEUE, RECORD_EVENTS_FILE
                 };
     }
 
@@ -304,46 +441,151 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
             return;
         }
 
-        final String eventKey = "Evnt:" + event.getUser() + "->" + event.getEventTypeId() + "@" + (event.getIssue() != null ? event.getIssue().getKey() : "");
-        NDC.push(eventKey); // Add "(%x)" to your log4j.properties patterns to
+        NDC.push(eventKey(event)); // Add "(%x)" to your log4j.properties patterns to
         // see this.
         try {
-            if (meetsTriggerConditions(event)) {
-                Set<Recipient> recipients = getRecipients(usersToNotify, event.getIssue());
-                //changed
+            metrics.eventsIn.incrementAndGet();
+            if (recorder != null) {
+                // Before filtering, so that a replay can be filtered differently.
+                recorder.record(event);
+            }
+            long start = LatencyHistogram.start();
+            boolean matched = meetsTriggerConditions(event);
+            metrics.filter.recordSince(start);
+            if (matched) {
+                metrics.eventsMatched.incrementAndGet();
+                if (transport.getState() != IMTransport.State.READY) {
+                    queuePendingEvent(event);
+                } else {
+                    dispatch(event);
+                }
+            }
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    private static String eventKey(IssueEvent event) {
+        return "Evnt:" + event.getUser() + "->" + event.getEventTypeId() + "@" + (event.getIssue() != null ? event.getIssue().getKey() : "");
+    }
+
+    /**
+     * Hold on to an event that arrived before the transport finished warming up. Once the queue is full the oldest
+     * events are discarded, so that an unreachable Jabber server can't exhaust memory.
+     */
+    private void queuePendingEvent(IssueEvent event) {
+        while (!pendingEvents.offer(event)) {
+            IssueEvent discarded = pendingEvents.poll();
+            if (discarded != null) {
+                metrics.eventsDropped.incrementAndGet();
+                log.warn("Jabber transport to " + transport.getServer() + " still not ready; discarding queued event " + discarded);
+            }
+        }
+        metrics.eventsQueued.incrementAndGet();
+        if (log.isDebugEnabled())
+            log.debug("Transport not ready yet; queued event (" + pendingEvents.size() + " pending)");
+        // Drains the queue once the transport is ready again, e.g. after a reconnect; straight away if it became
+        // ready after we checked.
+        transport.warmUp(drainPendingEvents);
+    }
+
+    private void notifyPendingEvents() {
+        IssueEvent event;
+        while ((event = pendingEvents.poll()) != null) {
+            dispatch(event);
+        }
+    }
+
+    /**
+     * Notify the event's recipients on the transport's bulkhead, so that a slow or failing Jabber server holds up
+     * neither JIRA nor listeners using other servers.
+     */
+    private void dispatch(final IssueEvent event) {
+        bulkhead.execute(new Bulkhead.Task() {
+            public void run() throws JabberServerConnectionException {
+                NDC.push(eventKey(event));
+                try {
+                    notifyRecipients(event);
+                } finally {
+                    NDC.pop();
+                }
+            }
+
+            public void dropped() {
+                metrics.eventsDropped.incrementAndGet();
+                if (log.isDebugEnabled())
+                    log.debug("Transport to " + transport.getServer() + " is failing or saturated; dropped event "
+                            + eventKey(event));
+            }
+        });
+    }
+
+    private void notifyRecipients(IssueEvent event) throws JabberServerConnectionException {
+        try {
+            EventContext eventContext = null;
+            final long eventTime = eventTimeMillis(event);
+            long start = LatencyHistogram.start();
+            Set<Recipient> recipients = getRecipients(usersToNotify, event.getIssue());
+            metrics.recipientResolution.recordSince(start);
+            metrics.recipients.addAndGet(recipients.size());
+            //changed
+            if (log.isDebugEnabled())
                 log.debug("Event matched conditions. Notifying " + recipients.size() + " users. " + usersToNotify +"");
-                for (Recipient recipient : recipients) {
-                    if (event.getUser() != null && event.getUser().getName() != null && recipient.getUser() != null) {
-                        if (event.getUser().equals(recipient.getUser())) {
-                            if (ignoreMyEvents)
-                                continue;
-                        }
+            for (Recipient recipient : recipients) {
+                if (event.getUser() != null && event.getUser().getName() != null && recipient.getUser() != null) {
+                    if (event.getUser().equals(recipient.getUser())) {
+                        if (ignoreMyEvents)
+                            continue;
                     }
+                }
 
-                    if (hasPermission(event, recipient)) {
-                        final IMStatus imStatus = transport.getContactStatus(recipient.getJabberId());
-                        if (isStatusNotifiable(imStatus)) {
+                if (hasPermission(event, recipient)) {
+                    start = LatencyHistogram.start();
+                    final IMStatus imStatus = transport.getContactStatus(recipient.getJabberId());
+                    metrics.presence.recordSince(start);
+                    if (isStatusNotifiable(imStatus)) {
+                        if (log.isDebugEnabled())
                             log.debug("\tNotifying " + recipient);
-                            String msg = getTemplatedMsg(event, recipient.getUser());
-                            transport.sendMessage(recipient.getJabberId(), msg);
-                        } else {
-                            log.debug("\tUser " + recipient + " is unavailable (status " + imStatus + ")");
+                        if (eventContext == null) eventContext = new EventContext(event, getMaxCommentBytes(), getBaseUrl());
+                        start = LatencyHistogram.start();
+                        String msg = getTemplatedMsg(eventContext, event, recipient.getUser());
+                        metrics.render.recordSince(start);
+                        metrics.renders.incrementAndGet();
+                        start = LatencyHistogram.start();
+                        boolean sent = transport.sendMessage(recipient.getJabberId(), msg, eventTime);
+                        metrics.send.recordSince(start);
+                        if (sent) {
+                            metrics.eventToSend.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - eventTime));
+                            metrics.sends.incrementAndGet();
+                        } else if (log.isDebugEnabled()) {
+                            log.debug("\tMessage to " + recipient + " was not sent");
                         }
-                    } else {
-                        log.info("\tUser " + recipient + " does not have permission to see (comment on) event " + event);
+                    } else if (log.isDebugEnabled()) {
+                        log.debug("\tUser " + recipient + " is unavailable (status " + imStatus + ")");
                     }
+                } else {
+                    log.info("\tUser " + recipient + " does not have permission to see (comment on) event " + event);
                 }
             }
         } catch (JabberServerConnectionException e) {
+            metrics.errors.incrementAndGet();
             if (log.isDebugEnabled())
                 log.debug(e.getMessage(), e);
             else
                 log.error(e.getMessage());
-        } finally {
-            NDC.pop();
+            // so that the bulkhead's circuit breaker sees it
+            throw e;
         }
     }
 
+    /**
+     * @return When the event happened. Events are queued as they are, so this is the original time even for events
+     *         that waited for the transport to warm up.
+     */
+    private static long eventTimeMillis(IssueEvent event) {
+        return event.getTime() != null ? event.getTime().getTime() : System.currentTimeMillis();
+    }
+
     /**
      * @return Whether the recipient has permission to see the triggered event.
      */
@@ -358,14 +600,16 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
             return false;
         }
 
+        // Checked once; building the messages below would otherwise cost a few string concatenations per event.
+        final boolean debug = log.isDebugEnabled();
         if (triggerEventIDs != null && !triggerEventIDs.contains(event.getEventTypeId())) return false;
-        if (triggerEventIDs != null) log.debug("Event matches eventIds " + triggerEventIDs);
+        if (triggerEventIDs != null && debug) log.debug("Event matches eventIds " + triggerEventIDs);
         if (projectKeys != null) {
             if (!projectKeys.contains(event.getIssue().getProjectObject().getKey())) {
-                log.debug("Event not from projects " + projectKeys);
+                if (debug) log.debug("Event not from projects " + projectKeys);
                 return false;
             } else
-                log.debug("Event from project(s) " + projectKeys);
+                if (debug) log.debug("Event from project(s) " + projectKeys);
         }
 
         if ("workflow".equals(event.getParams().get("eventsource"))) {
@@ -375,10 +619,10 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
                     JiraWorkflow workflow = workflowManager.getWorkflow(issue);
                     Matcher m = workflowNameRegex.matcher(workflow.getName());
                     if (!m.matches()) {
-                        log.debug("Issue " + issue + "'s workflow name does not match regexp " + workflowNameRegex + "; not notifying anyone.");
+                        if (debug) log.debug("Issue " + issue + "'s workflow name does not match regexp " + workflowNameRegex + "; not notifying anyone.");
                         return false;
                     }
-                    log.debug("Issue " + issue + " in workflow with regexp " + workflowNameRegex);
+                    if (debug) log.debug("Issue " + issue + " in workflow with regexp " + workflowNameRegex);
                 }
             } catch (WorkflowException e) {
                 log.error("Problem getting workflow for issue " + event.getIssue() + ": " + e, e);
@@ -394,13 +638,13 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
                     matchesPriority |= priorityId.toString().equals(issuePriority.getId());
                 }
                 if (!matchesPriority) {
-                    log.debug("Issue priority " + issuePriority.getId() + " not in " + priorityIDs + "; not notifying.");
+                    if (debug) log.debug("Issue priority " + issuePriority.getId() + " not in " + priorityIDs + "; not notifying.");
                     return false;
                 } else {
-                    log.debug("Issue matched priority " + priorityIDs);
+                    if (debug) log.debug("Issue matched priority " + priorityIDs);
                 }
             } else {
-                log.debug("Issue has no priority; not matching " + priorityIDs);
+                if (debug) log.debug("Issue has no priority; not matching " + priorityIDs);
             }
         }
         User currentUser = event.getUser();
@@ -411,16 +655,16 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
                     inRequiredGroup |= groupManager.isUserInGroup(currentUser, group);
                 }
                 if (!inRequiredGroup) {
-                    log.debug("User " + currentUser + " not in any of the required groups " + requiredGroups);
+                    if (debug) log.debug("User " + currentUser + " not in any of the required groups " + requiredGroups);
                     return false;
                 } else {
-                    log.debug("User " + currentUser + " in all required groups");
+                    if (debug) log.debug("User " + currentUser + " in all required groups");
                 }
             }
             if (ignoredGroups != null) {
                 for (Group group : ignoredGroups) {
                     if (groupManager.isUserInGroup(currentUser, group)) {
-                        log.debug("User " + currentUser + " in ignored group " + group + "; not notifying.");
+                        if (debug) log.debug("User " + currentUser + " in ignored group " + group + "; not notifying.");
                         return false;
                     }
                 }
@@ -458,7 +702,7 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
      *              'assignee').
      * @return A set of Recipients.
      */
-    private Set<Recipient> getRecipients(List<String> users, Issue issue) {
+    Set<Recipient> getRecipients(List<String> users, Issue issue) {
         Set<Recipient> recipients = new HashSet<Recipient>(users.size());
         for (String userStr : users) {
             if (ASSIGNEE_MATCH_TOKEN.equals(userStr)) {
@@ -468,7 +712,8 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
                 for (User watcherUser : getWatchers(issue)) {
                     String jid = getJIDForUser(watcherUser);
                     if (jid != null) {
-                        log.debug("Adding Watcher to Receipients: " + jid);
+                        if (log.isDebugEnabled())
+                            log.debug("Adding Watcher to Receipients: " + jid);
                         recipients.add(new Recipient(jid, issue.getAssignee()));
                     }
                 }
@@ -501,12 +746,17 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
     protected String getJIDForUser(User user) {
         if (user == null) return null;
         if (getImIDProperty() == null) return null;
-        String prop = "jira.meta." + getImIDProperty();
-        PropertySet propertySet = userPropertyManager.getPropertySet(user);
-        if (propertySet.exists(prop)) {
-            return propertySet.getString(prop);
-        } else
-            return null;
+        long start = LatencyHistogram.start();
+        try {
+            String prop = "jira.meta." + getImIDProperty();
+            PropertySet propertySet = userPropertyManager.getPropertySet(user);
+            if (propertySet.exists(prop)) {
+                return propertySet.getString(prop);
+            } else
+                return null;
+        } finally {
+            metrics.jidLookup.recordSince(start);
+        }
     }
 
     protected boolean isStatusNotifiable(IMStatus status) {
@@ -529,6 +779,27 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
                 " Note that any parameter with a 'default' can be left blank to have that default take effect.<ul>\n" +
                 "<li><b>XMPP Server, Login, Password, Port</b> - The Jabber server to communicate through, and the " +
                 "Jabber user to connect as (notifications will appear to come from this user). Do not include '@..' in XMPP Login. Leave the port blank to use the default." +
+                "<li><b>Delivery receipts</b> - If enabled, every message asks the recipient's client for an XEP-0184 receipt. " +
+                "Messages not acknowledged within the timeout are re-sent, up to the configured number of times." +
+                "<li><b>Keepalive ping</b> - The connection is pinged (XEP-0199) at this interval; after the configured number of " +
+                "unanswered pings it is considered dead and re-established immediately." +
+                "<li><b>Presence mode</b> - 'roster' (the default) keeps presence for every contact on the bot's roster. " +
+                "'probe' logs in without fetching the roster and probes the presence of recipients on demand, caching it for the given number of seconds. " +
+                "Use it for bots with very large rosters, on servers that route presence probes sent by clients." +
+                "<li><b>Metrics</b> - Event counts and stage timings of each listener and Jabber connection are published over JMX " +
+                "and, for administrators, at /plugins/servlet/jabber-notifier/metrics." +
+                "<li><b>" + MAX_MESSAGE_BYTES + "</b> - Messages are kept under this UTF-8 size, so that large comments don't exceed the " +
+                "Jabber server's stanza size limit. Long comments are truncated and a link to the full text is included." +
+                "<li><b>" + TRANSPORT + "</b> - '" + TransportFactories.JABBER + "' sends through the XMPP server above. '" +
+                TransportFactories.MEMORY + "' only counts messages and treats everyone as online, to measure the listener on its own. " +
+                "Any other value is the class name of an IMTransportFactory, which is given all of these parameters." +
+                "<li><b>" + TRANSPORT_THREADS + ", " + TRANSPORT_QUEUE + "</b> - Notifications are sent on a few threads of their own per " +
+                "transport, so that a slow or unreachable Jabber server only delays the listeners configured for it. When the queue is full, " +
+                "or the server has failed repeatedly, events are dropped and the server is left alone for half a minute. " +
+                "Listeners sharing a server share its threads; the first one configured decides how many. With more than one thread, " +
+                "notifications about the same issue may arrive out of order." +
+                "<li><b>" + RECORD_EVENTS_FILE + "</b> - Appends the type, issue, actor, comment visibility and watcher count of every " +
+                "event this listener receives to a compact binary file on the JIRA server, to replay production load with the benchmarks' ReplayDriver." +
                 "<li><b>" + USERS_TO_NOTIFY + "</b> - Comma-separated list of which users to notify when the listener's conditions all match. Values can be:<ul>" +
                 "    <li>A straightforward jabber ID, eg. jefft@chat.atlassian.com" +
                 "    <li>A JIRA username, in which case the user's Jabber ID is looked up in a User Property (whose key is set with the parameter below)." +
@@ -537,7 +808,9 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
                 "</ul>" +
                 "<li><b>" + IM_ID_PROPERTY + "</b> - The listener determines the jabber ID of JIRA users by looking for the " +
                 "User Property with this name. The User Property for each user can be set for each user by administrators." +
-                "<li><b>" + NOTIFIABLE_STATUSES + "</b> - Notify jabber users if their IM client is in one of these statuses." +
+                "<li><b>" + NOTIFIABLE_STATUSES + "</b> - Notify jabber users if their IM client is in one of these statuses " +
+                "(ONLINE, AWAY, AWAY_LONG, BUSY, OFFLINE or UNKNOWN). UNKNOWN is the status of a user whose presence " +
+                "has not been learnt yet, such as a first-time recipient in probe presence mode." +
                 "<li><b>" + TRIGGER_EVENTS + "</b> - comma-separated list of names or IDs of JIRA events to <b>trigger</b> on. Valid events are:" +
                 "<table border=1>" +
                 "<tr><th>Event ID</th><th>Event name</th></tr>" +
@@ -588,18 +861,80 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
      * @return The message text.
      */
     protected String getTemplatedMsg(IssueEvent event, User recipient) {
+        return getTemplatedMsg(new EventContext(event, getMaxCommentBytes(), getBaseUrl()), event, recipient);
+    }
+
+    /**
+     * Gets the instant message's text, rendered with the precompiled template.
+     *
+     * @param eventContext Template context of the event, shared between its recipients.
+     * @param event        JIRA trigger event.
+     * @param recipient    Recipient of the IM. Possibly null.
+     * @return The message text.
+     */
+    protected String getTemplatedMsg(EventContext eventContext, final IssueEvent event, final User recipient) {
+        String msg;
+        if (renderer == null) {
+            msg = getTemplatedMsgWithVelocityManager(event, recipient);
+        } else {
+            LazyContext context = new LazyContext(eventContext);
+            context.putLazy("desc", new LazyContext.Value() {
+                public Object get() {
+                    return getEventDescription(event, recipient);
+                }
+            });
+            msg = renderer.render(context);
+        }
+        return limitMessageSize(msg, event.getIssue());
+    }
+
+    /**
+     * The comment is already cut down to its share of the budget; this only kicks in if the rest of the message
+     * (e.g. a huge summary) pushes it over. The browse link is kept so the reader can still find the issue.
+     */
+    private String limitMessageSize(String msg, Issue issue) {
+        // Every char is at most 3 UTF-8 bytes, so short messages need not be measured.
+        if (maxMessageBytes <= 0 || msg.length() * 3 <= maxMessageBytes || Utf8Truncator.utf8Length(msg) <= maxMessageBytes) {
+            return msg;
+        }
+        String link = "\n" + getBaseUrl() + "/browse/" + issue.getKey();
+        if (log.isDebugEnabled())
+            log.debug("Message of " + msg.length() + " chars exceeds " + maxMessageBytes + " bytes; truncating");
+        return Utf8Truncator.truncate(msg, Math.max(1, maxMessageBytes - Utf8Truncator.utf8Length(link))) + link;
+    }
+
+    private int getMaxCommentBytes() {
+        return maxMessageBytes > 0 ? Math.max(maxMessageBytes - MESSAGE_HEADER_BYTES, maxMessageBytes / 2) : 0;
+    }
+
+    /**
+     * Gets the instant message's text through JIRA's VelocityManager, with every template value computed up front.
+     * Used if the template could not be precompiled.
+     */
+    protected String getTemplatedMsgWithVelocityManager(IssueEvent event, User recipient) {
         Issue issue = event.getIssue();
         String result = "";
         Map<String, Object> params = new HashMap<String, Object>();
         params.put("issue", issue);
         params.put("event", event);
-        final EventType eventType = ComponentManager.getInstance().getEventTypeManager().getEventType(event.getEventTypeId());
-        String desc = eventType != null ? eventType.getTranslatedName(recipient) : null;
-        params.put("desc", desc);
+        params.put("desc", getEventDescription(event, recipient));
         params.put("comment", event.getComment());
-        String base_url = ComponentManager.getInstance()
-                .getApplicationProperties().getString(APKeys.JIRA_BASEURL);
-        params.put("base_url", base_url);
+        params.put("author", event.getUser());
+        params.put("issueKey", issue.getKey());
+        params.put("summary", issue.getSummary());
+        params.put("priority", issue.getPriorityObject() != null ? issue.getPriorityObject().getName() : null);
+        params.put("status", issue.getStatusObject() != null ? issue.getStatusObject().getName() : null);
+        params.put("issueType", issue.getIssueTypeObject() != null ? issue.getIssueTypeObject().getName() : null);
+        params.put("resolution", issue.getResolutionObject() != null ? issue.getResolutionObject().getName() : "Unresolved");
+        params.put("base_url", getBaseUrl());
+        params.put("changes", ChangeSummary.fromChangeLog(event.getChangeLog(),
+                maxMessageBytes > 0 ? EventContext.MAX_CHANGE_VALUE_BYTES : 0));
+        if (event.getComment() != null) {
+            String body = event.getComment().getBody();
+            String truncated = Utf8Truncator.truncate(body, getMaxCommentBytes());
+            params.put("commentBody", truncated);
+            params.put("commentTruncated", body != null && body != truncated);
+        }
         try {
             result = velocityManager.getBody("", tpl, params);
         } catch (VelocityException e) {
@@ -608,6 +943,15 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
         return result;
     }
 
+    private String getEventDescription(IssueEvent event, User recipient) {
+        final EventType eventType = eventTypeManager.getEventType(event.getEventTypeId());
+        return eventType != null ? eventType.getTranslatedName(recipient) : null;
+    }
+
+    protected String getBaseUrl() {
+        return ComponentManager.getInstance().getApplicationProperties().getString(APKeys.JIRA_BASEURL);
+    }
+
     protected <E extends Enum<E>> EnumSet<E> stringToEnumSet(Class<E> clazz, String str, String regex) {
         EnumSet<E> result = EnumSet.noneOf(clazz);
         result.clear();
@@ -649,7 +993,7 @@ public class JabberNotifierListener extends AbstractIssueEventListener {
     /**
      * Recipient of a Jabber IM ping.
      */
-    private class Recipient {
+    class Recipient {
         private final String jabberId;
         private final User user;
 
@@ -0,0 +1,50 @@
+package com.atlassian.jira.ext.jabbernotifier.listener;
+
+import com.atlassian.jira.ext.jabbernotifier.metrics.LatencyHistogram;
+import com.atlassian.jira.ext.jabbernotifier.metrics.Metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counters and stage timers of a {@link JabberNotifierListener}, looked up once.
+ */
+class ListenerMetrics {
+    final AtomicLong eventsIn;
+    final AtomicLong eventsMatched;
+    final AtomicLong eventsQueued;
+    final AtomicLong eventsDropped;
+    final AtomicLong recipients;
+    final AtomicLong renders;
+    final AtomicLong sends;
+    final AtomicLong errors;
+
+    final LatencyHistogram filter;
+    final LatencyHistogram recipientResolution;
+    final LatencyHistogram jidLookup;
+    final LatencyHistogram presence;
+    final LatencyHistogram render;
+    final LatencyHistogram send;
+    /**
+     * From the originating issue event to the message being written, including any time spent queued while the
+     * transport warmed up.
+     */
+    final LatencyHistogram eventToSend;
+
+    ListenerMetrics(Metrics metrics) {
+        eventsIn = metrics.counter("eventsIn");
+        eventsMatched = metrics.counter("eventsMatched");
+        eventsQueued = metrics.counter("eventsQueued");
+        eventsDropped = metrics.counter("eventsDropped");
+        recipients = metrics.counter("recipients");
+        renders = metrics.counter("renders");
+        sends = metrics.counter("sends");
+        errors = metrics.counter("errors");
+        filter = metrics.timer("filter");
+        recipientResolution = metrics.timer("recipients");
+        jidLookup = metrics.timer("jidLookup");
+        presence = metrics.timer("presence");
+        render = metrics.timer("render");
+        send = metrics.timer("send");
+        eventToSend = metrics.timer("eventToSend");
+    }
+}
@@ -0,0 +1,21 @@
+package com.atlassian.jira.ext.jabbernotifier.listener;
+
+import com.atlassian.jira.ext.jabbernotifier.metrics.Metrics;
+import com.atlassian.jira.ext.jabbernotifier.record.EventRecorder;
+import com.atlassian.jira.ext.jabbernotifier.transport.Bulkhead;
+import com.atlassian.jira.ext.jabbernotifier.transport.JabberTransport;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Releases what the notifier shares between listeners when the plugin is disabled or uninstalled: connections,
+ * bulkhead threads and metrics MBeans would otherwise outlive the plugin and keep its classes loaded.
+ */
+public class NotifierLifecycle implements DisposableBean {
+
+    public void destroy() {
+        JabberTransport.closeAll();
+        Bulkhead.shutdownAll();
+        Metrics.releaseAll();
+        EventRecorder.closeAll();
+    }
+}
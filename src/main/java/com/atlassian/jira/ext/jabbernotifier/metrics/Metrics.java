@@ -0,0 +1,152 @@
+package com.atlassian.jira.ext.jabbernotifier.metrics;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and stage timers of one component (a listener or a transport). Every instance is published as an
+ * MBean named {@code com.atlassian.jira.ext.jabbernotifier:type=Metrics,name=<component>} and listed by the
+ * metrics servlet.
+ * <p>
+ * Look counters and timers up once and keep the reference; the lookup is a map access, updating is not.
+ */
+public class Metrics {
+    private static final Logger log = Logger.getLogger(Metrics.class);
+
+    static final String DOMAIN = "com.atlassian.jira.ext.jabbernotifier";
+
+    private static final ConcurrentMap<String, Metrics> registry = new ConcurrentHashMap<String, Metrics>();
+
+    private final String name;
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, LatencyHistogram> timers = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    Metrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The metrics of the named component, created and registered with JMX on first use. Components that are
+     *         re-created under the same name (e.g. a reconfigured listener) keep counting where they left off.
+     */
+    public static Metrics forComponent(String name) {
+        Metrics metrics = registry.get(name);
+        if (metrics == null) {
+            Metrics created = new Metrics(name);
+            metrics = registry.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+                register(created);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Stop listing the named component's metrics and unregister its MBean, for a component that has been
+     * reconfigured under a different name.
+     */
+    public static void release(String name) {
+        if (registry.remove(name) == null) {
+            return;
+        }
+        try {
+            ObjectName objectName = objectName(name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            log.warn("Could not unregister JMX metrics for " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Release every component's metrics, e.g. because the plugin is being disabled: their MBeans would otherwise
+     * keep the plugin's classes loaded.
+     */
+    public static void releaseAll() {
+        for (String name : registry.keySet()) {
+            release(name);
+        }
+    }
+
+    /**
+     * @return Metrics that are neither registered nor listed, for components that are not configured yet.
+     */
+    public static Metrics detached(String name) {
+        return new Metrics(name);
+    }
+
+    /**
+     * @return All components' metrics, by name.
+     */
+    public static SortedMap<String, Metrics> getAll() {
+        return new TreeMap<String, Metrics>(registry);
+    }
+
+    private static void register(Metrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(metrics.name);
+            // Left behind by an earlier instance of the plugin; it would show counters nobody updates anymore.
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new MetricsMBean(metrics), objectName);
+        } catch (JMException e) {
+            log.warn("Could not register JMX metrics for " + metrics.name + ": " + e.getMessage());
+        }
+    }
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public AtomicLong counter(String counterName) {
+        AtomicLong counter = counters.get(counterName);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(counterName, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public LatencyHistogram timer(String timerName) {
+        LatencyHistogram timer = timers.get(timerName);
+        if (timer == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            timer = timers.putIfAbsent(timerName, created);
+            if (timer == null) {
+                timer = created;
+            }
+        }
+        return timer;
+    }
+
+    public Map<String, AtomicLong> getCounters() {
+        return Collections.unmodifiableMap(new TreeMap<String, AtomicLong>(counters));
+    }
+
+    public Map<String, LatencyHistogram> getTimers() {
+        return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(timers));
+    }
+}
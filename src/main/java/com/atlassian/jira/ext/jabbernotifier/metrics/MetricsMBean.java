@@ -0,0 +1,92 @@
+package com.atlassian.jira.ext.jabbernotifier.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-only JMX view of a {@link Metrics} instance. Counters are exposed under their own names; each timer as
+ * {@code <timer>.count}, {@code .meanMicros}, {@code .p50Micros}, {@code .p99Micros}, {@code .p999Micros} and
+ * {@code .maxMicros}. Values are computed when read.
+ */
+class MetricsMBean implements DynamicMBean {
+
+    private final Metrics metrics;
+
+    MetricsMBean(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return Every attribute and its current value, in display order.
+     */
+    static Map<String, Long> snapshot(Metrics metrics) {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> counter : metrics.getCounters().entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, LatencyHistogram> timer : metrics.getTimers().entrySet()) {
+            String prefix = timer.getKey() + ".";
+            LatencyHistogram histogram = timer.getValue();
+            values.put(prefix + "count", histogram.getCount());
+            values.put(prefix + "meanMicros", TimeUnit.NANOSECONDS.toMicros(histogram.getMeanNanos()));
+            values.put(prefix + "p50Micros", histogram.getPercentileMicros(50));
+            values.put(prefix + "p99Micros", histogram.getPercentileMicros(99));
+            values.put(prefix + "p999Micros", histogram.getPercentileMicros(99.9));
+            values.put(prefix + "maxMicros", TimeUnit.NANOSECONDS.toMicros(histogram.getMaxNanos()));
+        }
+        return values;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException, ReflectionException {
+        Long value = snapshot(metrics).get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = snapshot(metrics);
+        AttributeList result = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                result.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return result;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String name : snapshot(metrics).keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Jabber notifier metrics of " + metrics.getName(),
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,42 @@
+package com.atlassian.jira.ext.jabbernotifier.metrics;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.jira.ComponentManager;
+import com.atlassian.jira.security.Permissions;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Plain-text dump of all notifier metrics, one {@code component attribute value} line each, for JIRA
+ * administrators. Served at {@code /plugins/servlet/jabber-notifier/metrics}.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        User user = ComponentManager.getInstance().getJiraAuthenticationContext().getLoggedInUser();
+        if (user == null || !ComponentManager.getInstance().getPermissionManager().hasPermission(Permissions.ADMINISTER, user)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        response.setContentType("text/plain; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+        for (Metrics metrics : Metrics.getAll().values()) {
+            for (Map.Entry<String, Long> value : MetricsMBean.snapshot(metrics).entrySet()) {
+                out.print(metrics.getName());
+                out.print(' ');
+                out.print(value.getKey());
+                out.print(' ');
+                out.println(value.getValue());
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,71 @@
+package com.atlassian.jira.ext.jabbernotifier.record;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Layout of an event log. A log starts with {@link #MAGIC} and {@link #VERSION}, followed by blocks:
+ * <ul>
+ * <li>{@link #SESSION}, then the session's start time as a long. Written whenever a recorder opens the file, and
+ * resets the string table and the time base.</li>
+ * <li>{@link #EVENT}, then the milliseconds since the previous event (or the session start), the event type ID plus
+ * one (0 for none), the issue key, project key, priority ID and actor as string references, the comment visibility
+ * as a byte ({@link #WORKFLOW_TRANSITION} added for events from a workflow transition), and the comment length and
+ * watcher count. Numbers are variable-length, the time difference zigzag encoded.</li>
+ * </ul>
+ * A string reference is {@link #NULL_STRING}, {@link #LITERAL} or {@link #NEW_ENTRY} followed by the string in
+ * modified UTF-8, or an index into the session's string table offset by {@link #FIRST_ENTRY}. Project keys, priorities
+ * and actors repeat a lot, so an event takes some 10 to 25 bytes.
+ */
+final class EventLogFormat {
+    static final int MAGIC = 0x4a4a4e45; // "JJNE"
+    static final int VERSION = 1;
+
+    static final int SESSION = 'S';
+    static final int EVENT = 'E';
+
+    static final int WORKFLOW_TRANSITION = 0x80;
+
+    static final int NULL_STRING = 0;
+    /** A string that is not added to the table, because the table is full. */
+    static final int LITERAL = 1;
+    static final int NEW_ENTRY = 2;
+    static final int FIRST_ENTRY = 3;
+
+    /**
+     * Issue keys are mostly unique, so the table would otherwise grow for as long as the log does.
+     */
+    static final int MAX_TABLE_SIZE = 4096;
+
+    private EventLogFormat() {
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length number in event log");
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,121 @@
+package com.atlassian.jira.ext.jabbernotifier.record;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.atlassian.jira.ext.jabbernotifier.record.EventLogFormat.*;
+
+/**
+ * Reads back the events written by an {@link EventRecorder}, in order.
+ */
+public class EventLogReader implements Closeable {
+    private static final RecordedEvent.CommentVisibility[] VISIBILITIES = RecordedEvent.CommentVisibility.values();
+
+    private final DataInputStream in;
+    private final List<String> table = new ArrayList<String>();
+    private long previousMillis;
+
+    public EventLogReader(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    public EventLogReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        if (this.in.readInt() != MAGIC) {
+            throw new IOException("Not an event log");
+        }
+        int version = this.in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported event log version " + version);
+        }
+    }
+
+    /**
+     * @return The next event, or null at the end of the log. A log cut short in the middle of an event, as by a
+     *         crash while recording, ends before that event.
+     */
+    public RecordedEvent next() throws IOException {
+        while (true) {
+            int block = in.read();
+            if (block == -1) {
+                return null;
+            }
+            try {
+                if (block == SESSION) {
+                    previousMillis = in.readLong();
+                    table.clear();
+                } else if (block == EVENT) {
+                    return readEvent();
+                } else {
+                    throw new IOException("Corrupt event log: unknown block " + block);
+                }
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+    }
+
+    private RecordedEvent readEvent() throws IOException {
+        long timeMillis = previousMillis + unzigzag(readVarLong(in));
+        long eventTypeId = readVarLong(in);
+        String issueKey = readString();
+        String projectKey = readString();
+        String priorityId = readString();
+        String actor = readString();
+        int flags = in.readUnsignedByte();
+        int visibility = flags & ~WORKFLOW_TRANSITION;
+        if (visibility >= VISIBILITIES.length) {
+            throw new IOException("Corrupt event log: unknown comment visibility " + visibility);
+        }
+        int commentLength = (int) readVarLong(in);
+        int watcherCount = (int) readVarLong(in);
+        previousMillis = timeMillis;
+        return new RecordedEvent(timeMillis, eventTypeId > 0 ? eventTypeId - 1 : null, issueKey, projectKey,
+                priorityId, actor, (flags & WORKFLOW_TRANSITION) != 0, VISIBILITIES[visibility], commentLength,
+                watcherCount);
+    }
+
+    private String readString() throws IOException {
+        int ref = (int) readVarLong(in);
+        switch (ref) {
+            case NULL_STRING:
+                return null;
+            case LITERAL:
+                return in.readUTF();
+            case NEW_ENTRY:
+                String value = in.readUTF();
+                table.add(value);
+                return value;
+            default:
+                int index = ref - FIRST_ENTRY;
+                if (index >= table.size()) {
+                    throw new IOException("Corrupt event log: string " + index + " of " + table.size());
+                }
+                return table.get(index);
+        }
+    }
+
+    /**
+     * @return All remaining events.
+     */
+    public List<RecordedEvent> readAll() throws IOException {
+        List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+        RecordedEvent event;
+        while ((event = next()) != null) {
+            events.add(event);
+        }
+        return events;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
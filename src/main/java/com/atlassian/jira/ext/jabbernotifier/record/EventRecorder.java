@@ -0,0 +1,169 @@
+package com.atlassian.jira.ext.jabbernotifier.record;
+
+import com.atlassian.jira.event.issue.IssueEvent;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.atlassian.jira.ext.jabbernotifier.record.EventLogFormat.*;
+
+/**
+ * Appends the essentials of incoming issue events to a compact binary log (see {@link EventLogFormat}), so that
+ * production load can be replayed against the notifier elsewhere. Read logs back with {@link EventLogReader}.
+ * <p>
+ * There is one recorder per file, shared by every listener configured to record to it, so a reconfigured listener
+ * carries on appending to the same stream. The file is closed once every listener has {@link #release released} it.
+ * A recorder that fails to write logs it once and stops recording.
+ */
+public class EventRecorder {
+    private static final Logger log = Logger.getLogger(EventRecorder.class);
+
+    private static final ConcurrentMap<String, EventRecorder> recorders = new ConcurrentHashMap<String, EventRecorder>();
+
+    private final File file;
+    // guarded by EventRecorder.class
+    private int users;
+    private final Map<String, Integer> table = new HashMap<String, Integer>();
+    private DataOutputStream out;
+    private long previousMillis;
+    private long recorded;
+
+    private EventRecorder(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The recorder appending to the given file, opened on first use. Hand it back with {@link #release} when
+     *         done with it.
+     * @throws IOException If the file can't be opened for appending.
+     */
+    public static synchronized EventRecorder forFile(String path) throws IOException {
+        File file = new File(path).getCanonicalFile();
+        EventRecorder recorder = recorders.get(file.getPath());
+        if (recorder == null) {
+            // Only an open recorder is published, so nobody records to one that is still opening or failed to open.
+            recorder = new EventRecorder(file);
+            recorder.open();
+            recorders.put(file.getPath(), recorder);
+        }
+        recorder.users++;
+        return recorder;
+    }
+
+    /**
+     * Close every recorder, e.g. because the plugin is being disabled.
+     */
+    public static synchronized void closeAll() {
+        for (EventRecorder recorder : recorders.values()) {
+            recorder.users = 0;
+            recorder.close();
+        }
+    }
+
+    /**
+     * Hand back a recorder got from {@link #forFile}; the last user to do so closes the file.
+     */
+    public void release() {
+        synchronized (EventRecorder.class) {
+            if (users > 0 && --users == 0) {
+                close();
+            }
+        }
+    }
+
+    private synchronized void open() throws IOException {
+        boolean empty = file.length() == 0;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (empty) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+        }
+        previousMillis = System.currentTimeMillis();
+        out.writeByte(SESSION);
+        out.writeLong(previousMillis);
+        out.flush();
+        log.info("Recording issue events to " + file);
+    }
+
+    public void record(IssueEvent event) {
+        record(RecordedEvent.of(event));
+    }
+
+    public synchronized void record(RecordedEvent event) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(EVENT);
+            writeVarLong(out, zigzag(event.getTimeMillis() - previousMillis));
+            previousMillis = event.getTimeMillis();
+            writeVarLong(out, event.getEventTypeId() != null ? event.getEventTypeId() + 1 : 0);
+            writeString(event.getIssueKey());
+            writeString(event.getProjectKey());
+            writeString(event.getPriorityId());
+            writeString(event.getActor());
+            int flags = event.isWorkflowTransition() ? WORKFLOW_TRANSITION : 0;
+            out.writeByte(event.getCommentVisibility().ordinal() | flags);
+            writeVarLong(out, event.getCommentLength());
+            writeVarLong(out, event.getWatcherCount());
+            // Events are rare next to the work each one causes; flushing each keeps the log whole if JIRA dies.
+            out.flush();
+            recorded++;
+        } catch (IOException e) {
+            log.error("Could not record event to " + file + " after " + recorded + " events; recording stopped: " + e);
+            close();
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            writeVarLong(out, NULL_STRING);
+            return;
+        }
+        Integer index = table.get(value);
+        if (index != null) {
+            writeVarLong(out, FIRST_ENTRY + index);
+        } else if (table.size() < MAX_TABLE_SIZE) {
+            table.put(value, table.size());
+            writeVarLong(out, NEW_ENTRY);
+            out.writeUTF(value);
+        } else {
+            writeVarLong(out, LITERAL);
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * @return Number of events recorded since the file was opened.
+     */
+    public synchronized long getRecordedCount() {
+        return recorded;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Stop recording. The file can be recorded to again with {@link #forFile}, which starts a new session.
+     */
+    public synchronized void close() {
+        recorders.remove(file.getPath(), this);
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Could not close event log " + file + ": " + e);
+            }
+            out = null;
+        }
+    }
+}
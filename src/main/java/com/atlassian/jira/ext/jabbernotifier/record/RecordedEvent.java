@@ -0,0 +1,138 @@
+package com.atlassian.jira.ext.jabbernotifier.record;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.jira.event.issue.IssueEvent;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.comments.Comment;
+
+/**
+ * What the notifier needs to know about an issue event to reproduce the work it caused: who did what to which
+ * issue, how many people watch it, and how big and how visible the comment was. Summaries, comment text and change
+ * logs are not kept.
+ */
+public class RecordedEvent {
+
+    /**
+     * Who may see the event's comment.
+     */
+    public enum CommentVisibility {
+        /** The event has no comment. */
+        NONE,
+        PUBLIC,
+        GROUP,
+        ROLE
+    }
+
+    private final long timeMillis;
+    private final Long eventTypeId;
+    private final String issueKey;
+    private final String projectKey;
+    private final String priorityId;
+    private final String actor;
+    private final boolean workflowTransition;
+    private final CommentVisibility commentVisibility;
+    private final int commentLength;
+    private final int watcherCount;
+
+    public RecordedEvent(long timeMillis, Long eventTypeId, String issueKey, String projectKey, String priorityId,
+                         String actor, boolean workflowTransition, CommentVisibility commentVisibility, int commentLength,
+                         int watcherCount) {
+        this.timeMillis = timeMillis;
+        this.eventTypeId = eventTypeId;
+        this.issueKey = issueKey;
+        this.projectKey = projectKey;
+        this.priorityId = priorityId;
+        this.actor = actor;
+        this.workflowTransition = workflowTransition;
+        this.commentVisibility = commentVisibility;
+        this.commentLength = commentLength;
+        this.watcherCount = watcherCount;
+    }
+
+    public static RecordedEvent of(IssueEvent event) {
+        Issue issue = event.getIssue();
+        User user = event.getUser();
+        Comment comment = event.getComment();
+        CommentVisibility visibility = CommentVisibility.NONE;
+        int commentLength = 0;
+        if (comment != null) {
+            if (comment.getGroupLevel() != null) {
+                visibility = CommentVisibility.GROUP;
+            } else if (comment.getRoleLevelId() != null) {
+                visibility = CommentVisibility.ROLE;
+            } else {
+                visibility = CommentVisibility.PUBLIC;
+            }
+            commentLength = comment.getBody() != null ? comment.getBody().length() : 0;
+        }
+        String projectKey = null;
+        String priorityId = null;
+        int watchers = 0;
+        if (issue != null) {
+            projectKey = issue.getProjectObject() != null ? issue.getProjectObject().getKey() : null;
+            priorityId = issue.getPriorityObject() != null ? issue.getPriorityObject().getId() : null;
+            // Kept on the issue itself; getting the watchers would be a query per event.
+            watchers = issue.getWatches() != null ? issue.getWatches().intValue() : 0;
+        }
+        boolean workflowTransition = event.getParams() != null && "workflow".equals(event.getParams().get("eventsource"));
+        return new RecordedEvent(event.getTime() != null ? event.getTime().getTime() : System.currentTimeMillis(),
+                event.getEventTypeId(), issue != null ? issue.getKey() : null, projectKey, priorityId,
+                user != null ? user.getName() : null, workflowTransition, visibility, commentLength, watchers);
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public Long getEventTypeId() {
+        return eventTypeId;
+    }
+
+    public String getIssueKey() {
+        return issueKey;
+    }
+
+    public String getProjectKey() {
+        return projectKey;
+    }
+
+    public String getPriorityId() {
+        return priorityId;
+    }
+
+    /**
+     * @return The name of the user who caused the event, or null if it was anonymous.
+     */
+    public String getActor() {
+        return actor;
+    }
+
+    /**
+     * @return Whether the event was fired by a workflow transition, which the listener filters by workflow name.
+     */
+    public boolean isWorkflowTransition() {
+        return workflowTransition;
+    }
+
+    public CommentVisibility getCommentVisibility() {
+        return commentVisibility;
+    }
+
+    /**
+     * @return Length of the comment in characters, or 0 if there is none.
+     */
+    public int getCommentLength() {
+        return commentLength;
+    }
+
+    public int getWatcherCount() {
+        return watcherCount;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordedEvent[" + timeMillis + " " + eventTypeId + "@" + issueKey + " by " + actor + " priority="
+                + priorityId + (workflowTransition ? " workflow" : "") + " comment=" + commentVisibility + "/"
+                + commentLength + " watchers=" + watcherCount + "]";
+    }
+}
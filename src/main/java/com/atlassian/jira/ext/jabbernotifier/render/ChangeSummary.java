@@ -0,0 +1,108 @@
+package com.atlassian.jira.ext.jabbernotifier.render;
+
+import org.apache.log4j.Logger;
+import org.ofbiz.core.entity.GenericEntityException;
+import org.ofbiz.core.entity.GenericValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The fields changed by a single event, read from the event's own change group. Only the change items of that group
+ * are loaded; the issue's history is never scanned.
+ */
+public class ChangeSummary {
+
+    private static final Logger log = Logger.getLogger(ChangeSummary.class);
+
+    private final List<Change> changes;
+
+    private ChangeSummary(List<Change> changes) {
+        this.changes = Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * @param changeLog The event's change group, as returned by {@code IssueEvent.getChangeLog()}. Possibly null.
+     * @return The summary, or null if the event changed no fields.
+     */
+    public static ChangeSummary fromChangeLog(GenericValue changeLog) {
+        return fromChangeLog(changeLog, 0);
+    }
+
+    /**
+     * @param changeLog     The event's change group, as returned by {@code IssueEvent.getChangeLog()}. Possibly null.
+     * @param maxValueBytes UTF-8 size old and new values are truncated to; 0 or less for no limit.
+     * @return The summary, or null if the event changed no fields.
+     */
+    public static ChangeSummary fromChangeLog(GenericValue changeLog, int maxValueBytes) {
+        if (changeLog == null) {
+            return null;
+        }
+        List<GenericValue> items;
+        try {
+            items = changeLog.getRelated("ChildChangeItem");
+        } catch (GenericEntityException e) {
+            log.error("Error loading change items of change group " + changeLog.getLong("id"), e);
+            return null;
+        }
+        if (items == null || items.isEmpty()) {
+            return null;
+        }
+        List<Change> changes = new ArrayList<Change>(items.size());
+        for (GenericValue item : items) {
+            changes.add(new Change(item.getString("field"),
+                    Utf8Truncator.truncate(item.getString("oldstring"), maxValueBytes),
+                    Utf8Truncator.truncate(item.getString("newstring"), maxValueBytes)));
+        }
+        return new ChangeSummary(changes);
+    }
+
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Change change : changes) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(change);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * One changed field.
+     */
+    public static class Change {
+        private final String field;
+        private final String from;
+        private final String to;
+
+        Change(String field, String from, String to) {
+            this.field = field;
+            this.from = from;
+            this.to = to;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getTo() {
+            return to;
+        }
+
+        @Override
+        public String toString() {
+            return field + ": " + (from != null ? from : "") + " -> " + (to != null ? to : "");
+        }
+    }
+}
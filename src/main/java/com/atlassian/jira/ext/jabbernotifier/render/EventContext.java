@@ -0,0 +1,90 @@
+package com.atlassian.jira.ext.jabbernotifier.render;
+
+import com.atlassian.jira.event.issue.IssueEvent;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.issuetype.IssueType;
+import com.atlassian.jira.issue.priority.Priority;
+import com.atlassian.jira.issue.resolution.Resolution;
+import com.atlassian.jira.issue.status.Status;
+
+/**
+ * Template context for one event, shared by all of its recipients. Issue fields are only looked up if the template
+ * references them:
+ * <ul>
+ * <li>$issue, $event, $comment, $author - the raw objects
+ * <li>$issueKey, $summary, $priority, $status, $issueType, $resolution - issue fields as strings
+ * <li>$base_url - JIRA's base URL
+ * <li>$changes - the fields changed by this event, as a {@link ChangeSummary}; null if none
+ * <li>$commentBody - the comment's text, shortened to the comment budget; $commentTruncated tells whether it was
+ * </ul>
+ */
+public class EventContext extends LazyContext {
+
+    /**
+     * Old and new values of a changed field (e.g. a rewritten description) are shortened to this many bytes.
+     */
+    public static final int MAX_CHANGE_VALUE_BYTES = 256;
+
+    /**
+     * @param maxCommentBytes UTF-8 size the comment is truncated to; 0 or less for no limit.
+     * @param baseUrl         JIRA's base URL.
+     */
+    public EventContext(final IssueEvent event, final int maxCommentBytes, String baseUrl) {
+        final Issue issue = event.getIssue();
+        put("issue", issue);
+        put("event", event);
+        put("comment", event.getComment());
+        put("author", event.getUser());
+        putLazy("issueKey", new Value() {
+            public Object get() {
+                return issue.getKey();
+            }
+        });
+        putLazy("summary", new Value() {
+            public Object get() {
+                return issue.getSummary();
+            }
+        });
+        putLazy("priority", new Value() {
+            public Object get() {
+                Priority priority = issue.getPriorityObject();
+                return priority != null ? priority.getName() : null;
+            }
+        });
+        putLazy("status", new Value() {
+            public Object get() {
+                Status status = issue.getStatusObject();
+                return status != null ? status.getName() : null;
+            }
+        });
+        putLazy("issueType", new Value() {
+            public Object get() {
+                IssueType issueType = issue.getIssueTypeObject();
+                return issueType != null ? issueType.getName() : null;
+            }
+        });
+        putLazy("resolution", new Value() {
+            public Object get() {
+                Resolution resolution = issue.getResolutionObject();
+                return resolution != null ? resolution.getName() : "Unresolved";
+            }
+        });
+        put("base_url", baseUrl);
+        putLazy("changes", new Value() {
+            public Object get() {
+                return ChangeSummary.fromChangeLog(event.getChangeLog(), maxCommentBytes > 0 ? MAX_CHANGE_VALUE_BYTES : 0);
+            }
+        });
+        putLazy("commentBody", new Value() {
+            public Object get() {
+                return event.getComment() != null ? Utf8Truncator.truncate(event.getComment().getBody(), maxCommentBytes) : null;
+            }
+        });
+        putLazy("commentTruncated", new Value() {
+            public Object get() {
+                return event.getComment() != null && event.getComment().getBody() != null
+                        && event.getComment().getBody() != EventContext.this.get("commentBody");
+            }
+        });
+    }
+}
@@ -0,0 +1,83 @@
+package com.atlassian.jira.ext.jabbernotifier.render;
+
+import org.apache.velocity.context.AbstractContext;
+import org.apache.velocity.context.Context;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Velocity context whose values can be computed on first use. A template that never references a value never pays
+ * for loading it, and a value referenced several times is computed once.
+ * <p>
+ * Contexts can be chained: a per-recipient context holding only recipient-specific values can wrap a per-event
+ * context, so that event values are computed once however many recipients are notified.
+ */
+public class LazyContext extends AbstractContext {
+
+    /**
+     * Computes a context value on demand.
+     */
+    public interface Value {
+        Object get();
+    }
+
+    private final Map<String, Object> resolved = new HashMap<String, Object>();
+    private final Map<String, Value> lazyValues = new HashMap<String, Value>();
+
+    public LazyContext() {
+    }
+
+    /**
+     * @param parent Context consulted for keys this context has no value for.
+     */
+    public LazyContext(Context parent) {
+        super(parent);
+    }
+
+    public synchronized void putLazy(String key, Value value) {
+        resolved.remove(key);
+        lazyValues.put(key, value);
+    }
+
+    @Override
+    public synchronized Object internalGet(String key) {
+        if (resolved.containsKey(key)) {
+            return resolved.get(key);
+        }
+        Value value = lazyValues.get(key);
+        if (value == null) {
+            return null;
+        }
+        Object result = value.get();
+        resolved.put(key, result);
+        return result;
+    }
+
+    @Override
+    public synchronized Object internalPut(String key, Object value) {
+        lazyValues.remove(key);
+        return resolved.put(key, value);
+    }
+
+    @Override
+    public synchronized boolean internalContainsKey(Object key) {
+        return resolved.containsKey(key) || lazyValues.containsKey(key);
+    }
+
+    @Override
+    public synchronized Object[] internalGetKeys() {
+        Set<String> keys = new HashSet<String>(resolved.keySet());
+        keys.addAll(lazyValues.keySet());
+        return keys.toArray();
+    }
+
+    @Override
+    public synchronized Object internalRemove(Object key) {
+        Value value = lazyValues.remove(key);
+        Object old = resolved.remove(key);
+        return old != null ? old : value;
+    }
+}
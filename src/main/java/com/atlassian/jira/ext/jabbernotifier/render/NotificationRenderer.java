@@ -0,0 +1,88 @@
+package com.atlassian.jira.ext.jabbernotifier.render;
+
+import org.apache.log4j.Logger;
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.exception.VelocityException;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Properties;
+
+/**
+ * Renders notification messages from a template that is parsed once, when the renderer is created, rather than
+ * being looked up through JIRA's VelocityManager on every message. Each thread renders into its own reused buffer.
+ */
+public class NotificationRenderer {
+    private static final Logger log = Logger.getLogger(NotificationRenderer.class);
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * Buffers that have grown past this size are not kept, so one huge message doesn't pin memory forever.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final Template template;
+
+    private final ThreadLocal<StringWriter> buffers = new ThreadLocal<StringWriter>() {
+        @Override
+        protected StringWriter initialValue() {
+            return new StringWriter(INITIAL_BUFFER_SIZE);
+        }
+    };
+
+    NotificationRenderer(Template template) {
+        this.template = template;
+    }
+
+    /**
+     * Compile a template found on this plugin's classpath.
+     *
+     * @param templatePath Classpath location, e.g. "templates/im/notify.vm".
+     * @return The renderer, or null if the template could not be compiled.
+     */
+    public static NotificationRenderer create(String templatePath) {
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        // Velocity's classpath loader looks at the context class loader, which must see this plugin's resources.
+        thread.setContextClassLoader(NotificationRenderer.class.getClassLoader());
+        try {
+            Properties properties = new Properties();
+            properties.setProperty("resource.loader", "class");
+            properties.setProperty("class.resource.loader.class", "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+            properties.setProperty("runtime.log.logsystem.class", "org.apache.velocity.runtime.log.NullLogChute");
+            VelocityEngine engine = new VelocityEngine();
+            engine.init(properties);
+            return new NotificationRenderer(engine.getTemplate(templatePath, "UTF-8"));
+        } catch (Exception e) {
+            log.error("Could not compile notification template " + templatePath, e);
+            return null;
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    /**
+     * @return The rendered message, or an empty string if rendering failed.
+     */
+    public String render(Context context) {
+        StringWriter buffer = buffers.get();
+        buffer.getBuffer().setLength(0);
+        try {
+            template.merge(context, buffer);
+            return buffer.toString();
+        } catch (VelocityException e) {
+            log.error("Error rendering Jabber notification", e);
+            return "";
+        } catch (IOException e) {
+            log.error("Error rendering Jabber notification", e);
+            return "";
+        } finally {
+            if (buffer.getBuffer().capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                buffers.remove();
+            }
+        }
+    }
+}
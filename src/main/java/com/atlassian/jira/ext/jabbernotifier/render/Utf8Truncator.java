@@ -0,0 +1,91 @@
+package com.atlassian.jira.ext.jabbernotifier.render;
+
+/**
+ * Shortens text to a number of UTF-8 encoded bytes, which is what counts against an XMPP server's stanza size limit.
+ * Text is cut between characters, never inside a surrogate pair, and preferably at a line break or space.
+ */
+public class Utf8Truncator {
+
+    /**
+     * Marker appended to truncated text.
+     */
+    public static final String ELLIPSIS = " [...]";
+
+    /**
+     * How far back from the hard limit we look for whitespace to cut at.
+     */
+    private static final int MAX_WORD_BACKTRACK = 80;
+
+    private Utf8Truncator() {
+    }
+
+    /**
+     * @param text     Text to shorten. Possibly null.
+     * @param maxBytes Maximum UTF-8 length of the result, including the ellipsis. 0 or less means no limit.
+     * @return The text itself if it fits, otherwise its longest fitting prefix followed by {@link #ELLIPSIS}.
+     */
+    public static String truncate(String text, int maxBytes) {
+        if (text == null || maxBytes <= 0) {
+            return text;
+        }
+        int fitting = fittingLength(text, maxBytes);
+        if (fitting == text.length()) {
+            return text;
+        }
+        int end = fittingLength(text, Math.max(0, maxBytes - ELLIPSIS.length()));
+        for (int i = end; i > 0 && i > end - MAX_WORD_BACKTRACK; i--) {
+            if (Character.isWhitespace(text.charAt(i - 1))) {
+                end = i - 1;
+                break;
+            }
+        }
+        return text.substring(0, end) + ELLIPSIS;
+    }
+
+    /**
+     * @return The UTF-8 encoded length of the text, without encoding it.
+     */
+    public static int utf8Length(CharSequence text) {
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            bytes += charBytes(text, i);
+            if (Character.isHighSurrogate(text.charAt(i)) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                i++;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return How many chars from the start of the text fit in maxBytes. Stops scanning as soon as the limit is hit,
+     *         so a huge text costs no more than the budget.
+     */
+    private static int fittingLength(CharSequence text, int maxBytes) {
+        int bytes = 0;
+        int i = 0;
+        while (i < text.length()) {
+            int width = 1;
+            if (Character.isHighSurrogate(text.charAt(i)) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                width = 2;
+            }
+            bytes += charBytes(text, i);
+            if (bytes > maxBytes) {
+                break;
+            }
+            i += width;
+        }
+        return i;
+    }
+
+    private static int charBytes(CharSequence text, int i) {
+        char c = text.charAt(i);
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800) {
+            return 2;
+        } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+            return 4;
+        }
+        return 3;
+    }
+}
@@ -0,0 +1,315 @@
+package com.atlassian.jira.ext.jabbernotifier.transport;
+
+import com.atlassian.jira.ext.jabbernotifier.metrics.LatencyHistogram;
+import com.atlassian.jira.ext.jabbernotifier.metrics.Metrics;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the work done through one transport apart from the work done through
+ * the others. Each transport gets its own few threads and bounded queue, and
+ * a {@link CircuitBreaker} that stops calling it while it keeps failing, so a
+ * slow or unreachable server holds up only the listeners configured for it,
+ * and never JIRA's event thread.
+ * <p>
+ * Listeners that share a transport share its bulkhead; the first one to ask
+ * for it decides its size, and the last one to {@link #release} it shuts it
+ * down.
+ */
+public class Bulkhead
+{
+	/**
+	 * Notification work, which reports an unusable transport by throwing.
+	 */
+	public interface Task
+	{
+		public void run() throws JabberServerConnectionException;
+
+		/**
+		 * Called instead of {@link #run()} when the bulkhead drops the task:
+		 * when it is handed over, or once it reaches a thread if the circuit
+		 * breaker opened (or was half open) in the meantime.
+		 */
+		public void dropped();
+	}
+
+	private static final Logger log = Logger.getLogger(Bulkhead.class);
+
+	private static final ConcurrentMap<IMTransport, Bulkhead> bulkheads = new ConcurrentHashMap<IMTransport, Bulkhead>();
+
+	private static final int FAILURES_TO_OPEN = 5;
+
+	private static final long OPEN_MILLIS = 30 * 1000;
+
+	/**
+	 * Tasks that take longer than this count as failures: a server that
+	 * answers this slowly is throttling us or about to time out.
+	 */
+	private static final long SLOW_TASK_MILLIS = 10 * 1000;
+
+	private static final long IDLE_THREAD_SECONDS = 60;
+
+	private final String name;
+
+	private final int threads;
+
+	private final int queueSize;
+
+	/**
+	 * Null if tasks run on the calling thread.
+	 */
+	private final ThreadPoolExecutor executor;
+
+	private final CircuitBreaker breaker = new CircuitBreaker(FAILURES_TO_OPEN, OPEN_MILLIS);
+
+	private final AtomicLong executed;
+
+	private final AtomicLong rejected;
+
+	private final AtomicLong shortCircuited;
+
+	private final AtomicLong failures;
+
+	private final AtomicLong breakerOpened;
+
+	private final LatencyHistogram queueWait;
+
+	private final LatencyHistogram taskTimer;
+
+	private final IMTransport transport;
+
+	// guarded by Bulkhead.class
+	private int users;
+
+	/**
+	 * @param threads Threads to run tasks on, or 0 to run them on the calling
+	 *            thread (still behind the circuit breaker).
+	 * @param queueSize Tasks that may wait for a thread before new ones are
+	 *            rejected.
+	 */
+	Bulkhead(IMTransport transport, String name, int threads, int queueSize)
+	{
+		this.transport = transport;
+		this.name = name;
+		this.threads = threads;
+		this.queueSize = queueSize;
+		if(threads > 0)
+		{
+			executor = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new NamedThreadFactory(name));
+			executor.allowCoreThreadTimeOut(true);
+		}
+		else
+		{
+			executor = null;
+		}
+		Metrics metrics = Metrics.forComponent(name);
+		executed = metrics.counter("executed");
+		rejected = metrics.counter("rejected");
+		shortCircuited = metrics.counter("shortCircuited");
+		failures = metrics.counter("failures");
+		breakerOpened = metrics.counter("breakerOpened");
+		queueWait = metrics.timer("queueWait");
+		taskTimer = metrics.timer("task");
+	}
+
+	/**
+	 * @return The bulkhead of the transport, created with the given size if
+	 *         it has none yet. Hand it back with {@link #release} when done
+	 *         with it.
+	 */
+	public static synchronized Bulkhead forTransport(IMTransport transport, int threads, int queueSize)
+	{
+		Bulkhead bulkhead = bulkheads.get(transport);
+		if(bulkhead == null)
+		{
+			bulkhead = new Bulkhead(transport, "bulkhead:" + transport.getServer() + ":"
+					+ Integer.toHexString(System.identityHashCode(transport)), threads, queueSize);
+			bulkheads.put(transport, bulkhead);
+		}
+		bulkhead.users++;
+		if(bulkhead.threads != threads || bulkhead.queueSize != queueSize)
+		{
+			log.warn("Transport to " + transport.getServer() + " already has " + bulkhead.threads + " threads and a queue of "
+					+ bulkhead.queueSize + "; ignoring " + threads + " and " + queueSize);
+		}
+		return bulkhead;
+	}
+
+	/**
+	 * Shut every bulkhead down, e.g. because the plugin is being disabled.
+	 * Queued tasks are discarded; running ones are left to finish.
+	 */
+	public static synchronized void shutdownAll()
+	{
+		for(IMTransport transport : bulkheads.keySet())
+		{
+			Bulkhead bulkhead = bulkheads.remove(transport);
+			if(bulkhead != null)
+			{
+				bulkhead.shutdown(true);
+			}
+		}
+	}
+
+	/**
+	 * Hand back a bulkhead got from {@link #forTransport}, e.g. because the
+	 * listener now sends through another transport. The last user to do so
+	 * shuts it down, once the tasks already queued have run.
+	 */
+	public void release()
+	{
+		synchronized(Bulkhead.class)
+		{
+			if(users > 0 && -- users == 0)
+			{
+				bulkheads.remove(transport, this);
+				shutdown(false);
+			}
+		}
+	}
+
+	private void shutdown(boolean discardQueued)
+	{
+		if(executor != null && discardQueued)
+		{
+			executor.shutdownNow();
+		}
+		else if(executor != null)
+		{
+			executor.shutdown();
+		}
+		Metrics.release(name);
+	}
+
+	/**
+	 * Run a task on the bulkhead's threads, or tell it that it was dropped,
+	 * because the queue is full or the transport's circuit breaker is open.
+	 */
+	public void execute(final Task task)
+	{
+		if(breaker.isOpen())
+		{
+			shortCircuited.incrementAndGet();
+			task.dropped();
+			return;
+		}
+		if(executor == null)
+		{
+			run(task, LatencyHistogram.start());
+			return;
+		}
+		final long enqueued = LatencyHistogram.start();
+		try
+		{
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					queueWait.recordSince(enqueued);
+					Bulkhead.this.run(task, LatencyHistogram.start());
+				}
+			});
+		}
+		catch(RejectedExecutionException e)
+		{
+			rejected.incrementAndGet();
+			task.dropped();
+		}
+	}
+
+	private void run(Task task, long start)
+	{
+		// The breaker may have opened while the task was queued.
+		if( ! breaker.allowRequest())
+		{
+			shortCircuited.incrementAndGet();
+			task.dropped();
+			return;
+		}
+		boolean failed = true;
+		try
+		{
+			task.run();
+			failed = false;
+		}
+		catch(JabberServerConnectionException e)
+		{
+			// reported by the task
+		}
+		catch(RuntimeException e)
+		{
+			log.error("Notification failed in " + name, e);
+		}
+		finally
+		{
+			long nanos = System.nanoTime() - start;
+			taskTimer.record(nanos);
+			executed.incrementAndGet();
+			failed |= TimeUnit.NANOSECONDS.toMillis(nanos) > SLOW_TASK_MILLIS;
+			if(failed)
+			{
+				failures.incrementAndGet();
+				if(breaker.recordFailure())
+				{
+					breakerOpened.incrementAndGet();
+					log.warn(name + " keeps failing or is too slow; dropping its notifications for "
+							+ TimeUnit.MILLISECONDS.toSeconds(OPEN_MILLIS) + " seconds");
+				}
+			}
+			else
+			{
+				breaker.recordSuccess();
+			}
+		}
+	}
+
+	public CircuitBreaker.State getBreakerState()
+	{
+		return breaker.getState();
+	}
+
+	/**
+	 * @return Tasks waiting for a thread.
+	 */
+	public int getQueueLength()
+	{
+		return executor != null ? executor.getQueue().size() : 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory
+	{
+		private final String prefix;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix)
+		{
+			this.prefix = "jabber-notifier-" + prefix + "-";
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
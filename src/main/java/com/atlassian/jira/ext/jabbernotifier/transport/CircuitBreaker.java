@@ -0,0 +1,93 @@
+package com.atlassian.jira.ext.jabbernotifier.transport;
+
+/**
+ * Stops calls to a transport that keeps failing. After a number of
+ * consecutive failures the breaker opens and refuses calls for a while; then
+ * it lets a single trial call through, and closes again if that succeeds.
+ */
+public class CircuitBreaker
+{
+	public enum State {CLOSED, OPEN, HALF_OPEN }
+
+	private final int failureThreshold;
+
+	private final long openMillis;
+
+	// guarded by this
+	private State state = State.CLOSED;
+
+	// guarded by this
+	private int consecutiveFailures;
+
+	// guarded by this
+	private long openedAt;
+
+	/**
+	 * @param failureThreshold Consecutive failures that open the breaker.
+	 * @param openMillis How long it stays open before a trial call.
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis)
+	{
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @return Whether a call may go ahead. A caller that is allowed must
+	 *         report the outcome with {@link #recordSuccess()} or
+	 *         {@link #recordFailure()}.
+	 */
+	public synchronized boolean allowRequest()
+	{
+		switch(state)
+		{
+			case CLOSED:
+				return true;
+			case OPEN:
+				if(System.currentTimeMillis() - openedAt >= openMillis)
+				{
+					state = State.HALF_OPEN;
+					return true;
+				}
+				return false;
+			default:
+				// a trial call is under way
+				return false;
+		}
+	}
+
+	/**
+	 * @return Whether the breaker is refusing calls and not yet due for a
+	 *         trial. Unlike {@link #allowRequest()} this changes nothing.
+	 */
+	public synchronized boolean isOpen()
+	{
+		return state == State.OPEN && System.currentTimeMillis() - openedAt < openMillis;
+	}
+
+	public synchronized void recordSuccess()
+	{
+		consecutiveFailures = 0;
+		state = State.CLOSED;
+	}
+
+	/**
+	 * @return Whether this failure opened the breaker.
+	 */
+	public synchronized boolean recordFailure()
+	{
+		consecutiveFailures++;
+		if(state == State.HALF_OPEN || state == State.CLOSED && consecutiveFailures >= failureThreshold)
+		{
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized State getState()
+	{
+		return state;
+	}
+}
@@ -2,15 +2,47 @@ package com.atlassian.jira.ext.jabbernotifier.transport;
 
 public interface IMTransport 
 {
-	public enum IMStatus {OFFLINE, ONLINE, BUSY, AWAY, AWAY_LONG }
+	/**
+	 * UNKNOWN is only reported in probe presence mode, for a contact whose
+	 * server has not answered yet.
+	 */
+	public enum IMStatus {OFFLINE, ONLINE, BUSY, AWAY, AWAY_LONG, UNKNOWN }
+
+	/**
+	 * Readiness of a transport. Only a READY transport has finished
+	 * connecting, logging in and loading contact presence.
+	 */
+	public enum State {NEW, CONNECTING, FAILED, READY }
 	
 	public String[] getAcceptedParams();
 
 	public void connect() throws JabberServerConnectionException;
 	
 	public boolean isConnected();
+
+	public State getState();
+
+	/**
+	 * Connect, log in and load contact presence in the background. Returns
+	 * immediately; failed attempts are retried until they succeed.
+	 * @param onReady Possibly null callback, run once the transport is READY
+	 *             (straight away on the calling thread if it already is). A
+	 *             callback already waiting is not added again.
+	 */
+	public void warmUp(Runnable onReady);
 	
 	public void sendMessage(String to, String msg) throws JabberServerConnectionException;
+
+	/**
+	 * Send a notification about an issue event. Once the message is written
+	 * the time since the event is recorded as the transport's end-to-end
+	 * latency.
+	 * @param eventTimeMillis When the originating event happened, in
+	 *             milliseconds since the epoch (see IssueEvent#getTime()).
+	 * @return False if the message was not written, because the transport
+	 *         is not connected or the server refused it.
+	 */
+	public boolean sendMessage(String to, String msg, long eventTimeMillis) throws JabberServerConnectionException;
 	
 	public void setTransportListener(TransportListener listener);
 
@@ -25,4 +57,15 @@ public interface IMTransport
     public IMStatus getContactStatus(String contact) throws JabberServerConnectionException;
 
 	public String getServer();
+
+	/**
+	 * @return The account the transport logs in as, without the server.
+	 */
+	public String getLogin();
+
+	/**
+	 * Disconnect and stop the transport's background threads. A closed
+	 * transport is not used again.
+	 */
+	public void close();
 }
\ No newline at end of file
@@ -0,0 +1,24 @@
+package com.atlassian.jira.ext.jabbernotifier.transport;
+
+import java.util.Map;
+
+/**
+ * Makes the transport a listener sends through. The listener picks one by
+ * the name given in its transport parameter (see {@link TransportFactories}),
+ * so implementations need a public no-argument constructor.
+ */
+public interface IMTransportFactory
+{
+	/**
+	 * @return Parameters of the transport, which the listener offers next to
+	 *         its own.
+	 */
+	public String[] getAcceptedParams();
+
+	/**
+	 * @param params All of the listener's parameters.
+	 * @return A transport configured from the parameters. It may be shared
+	 *         with other listeners configured the same way.
+	 */
+	public IMTransport create(Map<String, String> params);
+}
@@ -0,0 +1,261 @@
+package com.atlassian.jira.ext.jabbernotifier.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A transport that is always ready and goes nowhere: it answers presence from
+ * a script and keeps the most recent messages it is asked to send. Nothing in
+ * it takes a lock, so listeners measured against it measure the listener.
+ */
+public class InMemoryTransport implements IMTransport
+{
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Selected with {@link TransportFactories#MEMORY}. Every listener gets a
+	 * transport of its own.
+	 */
+	public static class Factory implements IMTransportFactory
+	{
+		@Override
+		public String[] getAcceptedParams()
+		{
+			return new String[0];
+		}
+
+		@Override
+		public IMTransport create(Map<String, String> params)
+		{
+			return new InMemoryTransport(DEFAULT_CAPACITY);
+		}
+	}
+
+	/**
+	 * A message as it was handed to the transport.
+	 */
+	public static final class Message
+	{
+		private final String to;
+
+		private final String body;
+
+		private final long eventTimeMillis;
+
+		Message(String to, String body, long eventTimeMillis)
+		{
+			this.to = to;
+			this.body = body;
+			this.eventTimeMillis = eventTimeMillis;
+		}
+
+		public String getTo()
+		{
+			return to;
+		}
+
+		public String getBody()
+		{
+			return body;
+		}
+
+		/**
+		 * @return When the originating event happened, or -1 if the message
+		 *         isn't about an event.
+		 */
+		public long getEventTimeMillis()
+		{
+			return eventTimeMillis;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Message[to=" + to + " " + body.length() + " chars]";
+		}
+	}
+
+	private final ConcurrentMap<String, IMStatus> statuses = new ConcurrentHashMap<String, IMStatus>();
+
+	private volatile IMStatus defaultStatus = IMStatus.ONLINE;
+
+	private final AtomicReferenceArray<Message> recent;
+
+	private final AtomicLong messages = new AtomicLong();
+
+	private final AtomicLong chars = new AtomicLong();
+
+	private final AtomicLong presenceLookups = new AtomicLong();
+
+	private volatile TransportListener transportListener;
+
+	public InMemoryTransport()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity How many of the most recent messages to keep; 0 to only
+	 *            count them.
+	 */
+	public InMemoryTransport(int capacity)
+	{
+		recent = capacity > 0 ? new AtomicReferenceArray<Message>(capacity) : null;
+	}
+
+	/**
+	 * Script the presence of a contact. Takes effect for the next lookup.
+	 * @param contact Bare JID, as recipients are addressed.
+	 */
+	public void setStatus(String contact, IMStatus status)
+	{
+		statuses.put(contact, status);
+	}
+
+	/**
+	 * @param status Presence of contacts that have not been scripted
+	 *            (initially ONLINE).
+	 */
+	public void setDefaultStatus(IMStatus status)
+	{
+		defaultStatus = status;
+	}
+
+	/**
+	 * @return Number of messages sent since the transport was created.
+	 */
+	public long getMessageCount()
+	{
+		return messages.get();
+	}
+
+	public long getCharCount()
+	{
+		return chars.get();
+	}
+
+	public long getPresenceLookupCount()
+	{
+		return presenceLookups.get();
+	}
+
+	/**
+	 * @return The most recent messages, oldest first. Messages sent while this
+	 *         runs may or may not be included.
+	 */
+	public List<Message> getRecentMessages()
+	{
+		List<Message> result = new ArrayList<Message>();
+		if(recent == null)
+		{
+			return result;
+		}
+		long end = messages.get();
+		for(long i = Math.max(0, end - recent.length()); i < end; i++)
+		{
+			Message message = recent.get((int) (i % recent.length()));
+			if(message != null)
+			{
+				result.add(message);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Deliver a message from a contact to the transport listener, as if it
+	 * had been received.
+	 * @return The listener's reply, or null if there is no listener.
+	 */
+	public String receive(String from, String msg)
+	{
+		TransportListener listener = transportListener;
+		return listener != null ? listener.processMessage(from, msg) : null;
+	}
+
+	@Override
+	public String[] getAcceptedParams()
+	{
+		return new String[0];
+	}
+
+	@Override
+	public void connect()
+	{
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return true;
+	}
+
+	@Override
+	public State getState()
+	{
+		return State.READY;
+	}
+
+	@Override
+	public void warmUp(Runnable onReady)
+	{
+		if(onReady != null)
+		{
+			onReady.run();
+		}
+	}
+
+	@Override
+	public void sendMessage(String to, String msg)
+	{
+		sendMessage(to, msg, - 1);
+	}
+
+	@Override
+	public boolean sendMessage(String to, String msg, long eventTimeMillis)
+	{
+		long sequence = messages.getAndIncrement();
+		chars.addAndGet(msg.length());
+		if(recent != null)
+		{
+			recent.set((int) (sequence % recent.length()), new Message(to, msg, eventTimeMillis));
+		}
+		return true;
+	}
+
+	@Override
+	public void setTransportListener(TransportListener listener)
+	{
+		transportListener = listener;
+	}
+
+	@Override
+	public IMStatus getContactStatus(String contact)
+	{
+		presenceLookups.incrementAndGet();
+		IMStatus status = statuses.get(contact);
+		return status != null ? status : defaultStatus;
+	}
+
+	@Override
+	public String getServer()
+	{
+		return "memory";
+	}
+
+	@Override
+	public String getLogin()
+	{
+		return "memory";
+	}
+
+	@Override
+	public void close()
+	{
+	}
+}
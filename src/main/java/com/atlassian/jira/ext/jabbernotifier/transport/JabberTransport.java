@@ -8,53 +8,156 @@ package com.atlassian.jira.ext.jabbernotifier.transport;
  * 
  */
 
+import com.atlassian.jira.ext.jabbernotifier.metrics.LatencyHistogram;
+import com.atlassian.jira.ext.jabbernotifier.metrics.Metrics;
+import com.atlassian.jira.ext.jabbernotifier.transport.ping.KeepAlivePinger;
+import com.atlassian.jira.ext.jabbernotifier.transport.ping.Ping;
+import com.atlassian.jira.ext.jabbernotifier.transport.presence.PresenceProbeCache;
+import com.atlassian.jira.ext.jabbernotifier.transport.receipts.DeliveryReceipt;
+import com.atlassian.jira.ext.jabbernotifier.transport.receipts.DeliveryReceiptRequest;
+import com.atlassian.jira.ext.jabbernotifier.transport.receipts.DeliveryTracker;
+import com.atlassian.jira.ext.jabbernotifier.transport.roster.RosterMaintainer;
 import org.apache.log4j.Logger;
 import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.IQTypeFilter;
+import org.jivesoftware.smack.filter.PacketExtensionFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.Presence.Mode;
 import org.jivesoftware.smack.packet.Presence.Type;
+import org.jivesoftware.smack.provider.ProviderManager;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class JabberTransport implements IMTransport
 {
 
 	private static final Logger log = Logger.getLogger(JabberTransport.class);
 
+	/**
+	 * One transport per account, keyed by login, server and port.
+	 */
 	private static Map<String, JabberTransport> transports = new HashMap<String, JabberTransport>();
 
 	/**
 	 * Factory method for creating JabberTransports. If a Transport with the
-	 * specified connection parameters has already been created, it will be
-	 * returned.
+	 * same parameters has already been created, it will be returned. If the
+	 * account's transport was created with other parameters (e.g. the
+	 * listener was reconfigured), it is closed and replaced.
 	 */
 	public static synchronized IMTransport create(Map<String, String> params)
 	{
-		String key = params.get(XMPP_SERVER) + params.get(XMPP_LOGIN) + params.get(XMPP_PASSWORD)
-				+ params.get(XMPP_PORT);
-		if( ! transports.containsKey(key))
+		String account = params.get(XMPP_LOGIN) + "@" + params.get(XMPP_SERVER) + ":" + params.get(XMPP_PORT);
+		Map<String, String> settings = settingsOf(params);
+		JabberTransport transport = transports.get(account);
+		if(transport != null && transport.settings.equals(settings))
 		{
-			final JabberTransport transport = new JabberTransport();
-			transport.setParams(params);
-			transports.put(key, transport);
+			return transport;
 		}
-		return transports.get(key);
+		if(transport != null)
+		{
+			log.info("Settings of the Jabber transport for " + account + " changed; replacing it.");
+			transport.close();
+		}
+		transport = new JabberTransport();
+		transport.setParams(params);
+		transports.put(account, transport);
+		return transport;
+	}
+
+	/**
+	 * Close every transport, e.g. because the plugin is being disabled.
+	 */
+	public static synchronized void closeAll()
+	{
+		for(JabberTransport transport : transports.values())
+		{
+			transport.close();
+		}
+		transports.clear();
+	}
+
+	/**
+	 * @return The values of all the transport's own parameters.
+	 */
+	private static Map<String, String> settingsOf(Map<String, String> params)
+	{
+		Map<String, String> settings = new HashMap<String, String>();
+		for(String param : new JabberTransport().getAcceptedParams())
+		{
+			settings.put(param, params.get(param));
+		}
+		return settings;
 	}
 
 	private XMPPConnection xmppConnection;
 
-	private static final String XMPP_SERVER = "XMPP Server";
+	static final String XMPP_SERVER = "XMPP Server";
+
+	static final String XMPP_LOGIN = "XMPP Login";
+
+	static final String XMPP_PASSWORD = "XMPP Password";
+
+	static final String XMPP_PORT = "XMPP Port (Default 5222)";
+
+	static final String XMPP_DELIVERY_RECEIPTS = "Request delivery receipts true/false (default: false)";
+
+	private static final String XMPP_RECEIPT_TIMEOUT = "Delivery receipt timeout in seconds (default: 30)";
+
+	private static final String XMPP_RECEIPT_RETRIES = "Re-send unacknowledged messages this many times (default: 2)";
+
+	private static final String XMPP_PING_INTERVAL = "Keepalive ping interval in seconds, 0 to disable (default: 60)";
 
-	private static final String XMPP_LOGIN = "XMPP Login";
+	private static final String XMPP_PING_FAILURES = "Unanswered pings before reconnecting (default: 2)";
 
-	private static final String XMPP_PASSWORD = "XMPP Password";
+	private static final String XMPP_ROSTER_INACTIVE_DAYS = "Remove roster entries not notified for this many days, 0 to keep (default: 90)";
 
-	private static final String XMPP_PORT = "XMPP Port (Default 5222)";
+	private static final String XMPP_ROSTER_MAX_ENTRIES = "Maximum notification recipients on roster, 0 for no limit (default: 2000)";
+
+	static final String XMPP_PRESENCE_MODE = "Presence mode: roster or probe (default: roster)";
+
+	private static final String XMPP_PRESENCE_TTL = "Seconds to trust a probed presence, probe mode only (default: 120)";
+
+	private static final String ROSTER_GROUP = "NotificationRecipients";
 
 	private static final int DEFAULT_PORT = 5222;
 
+	private static final int DEFAULT_RECEIPT_TIMEOUT = 30;
+
+	private static final int DEFAULT_RECEIPT_RETRIES = 2;
+
+	private static final int DEFAULT_PING_INTERVAL = 60;
+
+	private static final int DEFAULT_PING_FAILURES = 2;
+
+	private static final int DEFAULT_ROSTER_INACTIVE_DAYS = 90;
+
+	private static final int DEFAULT_ROSTER_MAX_ENTRIES = 2000;
+
+	private static final int DEFAULT_PRESENCE_TTL = 120;
+
+	private static final int MAX_PROBED_CONTACTS = 5000;
+
+	private static final long WARM_UP_RETRY_MIN_MILLIS = 5 * 1000;
+
+	private static final long WARM_UP_RETRY_MAX_MILLIS = 5 * 60 * 1000;
+
+	static
+	{
+		ProviderManager.getInstance().addExtensionProvider(DeliveryReceipt.ELEMENT, DeliveryReceipt.NAMESPACE,
+				new DeliveryReceipt.Provider());
+		ProviderManager.getInstance().addIQProvider(Ping.ELEMENT, Ping.NAMESPACE, new Ping.Provider());
+	}
+
 	private String xmppServer;
 
 	private String xmppLogin;
@@ -67,6 +170,62 @@ public class JabberTransport implements IMTransport
 
 	private MessageListener aMsgListener;
 
+	private boolean requestReceipts;
+
+	private int receiptTimeout = DEFAULT_RECEIPT_TIMEOUT;
+
+	private int receiptRetries = DEFAULT_RECEIPT_RETRIES;
+
+	private DeliveryTracker deliveryTracker;
+
+	private KeepAlivePinger pinger;
+
+	private RosterMaintainer rosterMaintainer;
+
+	/**
+	 * Non-null in probe presence mode, in which the roster is never loaded.
+	 */
+	private PresenceProbeCache presenceCache;
+
+	private volatile long rosterLoadMillis = - 1;
+
+	private LatencyHistogram connectTimer;
+
+	private LatencyHistogram loginTimer;
+
+	private LatencyHistogram rosterTimer;
+
+	private LatencyHistogram presenceTimer;
+
+	private LatencyHistogram sendTimer;
+
+	private LatencyHistogram receiptTimer;
+
+	private LatencyHistogram eventToSendTimer;
+
+	private AtomicLong sends;
+
+	private AtomicLong sendErrors;
+
+	private AtomicLong connectErrors;
+
+	private AtomicLong reconnects;
+
+	private volatile State state = State.NEW;
+
+	/**
+	 * Parameters the transport was created with, see {@link #settingsOf(Map)}.
+	 */
+	private Map<String, String> settings = new HashMap<String, String>();
+
+	private volatile boolean closed;
+
+	// guarded by this
+	private boolean warmingUp;
+
+	// guarded by this
+	private final List<Runnable> readyCallbacks = new ArrayList<Runnable>();
+
 	/**
 	 * Create an unconfigured JabberTransport. Use
 	 * {@link com.atlassian.jira.ext.jabbernotifier.transport.JabberTransport#create(java.util.Map)}
@@ -75,6 +234,22 @@ public class JabberTransport implements IMTransport
 	public JabberTransport()
 	{
 		xmppPort = DEFAULT_PORT;
+		initMetrics(Metrics.detached("transport"));
+	}
+
+	private void initMetrics(Metrics metrics)
+	{
+		connectTimer = metrics.timer("connect");
+		loginTimer = metrics.timer("login");
+		rosterTimer = metrics.timer("rosterLoad");
+		presenceTimer = metrics.timer("presence");
+		sendTimer = metrics.timer("send");
+		receiptTimer = metrics.timer("receipt");
+		eventToSendTimer = metrics.timer("eventToSend");
+		sends = metrics.counter("sends");
+		sendErrors = metrics.counter("sendErrors");
+		connectErrors = metrics.counter("connectErrors");
+		reconnects = metrics.counter("reconnects");
 	}
 
 	@Override
@@ -82,12 +257,15 @@ public class JabberTransport implements IMTransport
 	{
 		return new String[]
 		{
-				XMPP_SERVER, XMPP_PORT, XMPP_LOGIN, XMPP_PASSWORD
+				XMPP_SERVER, XMPP_PORT, XMPP_LOGIN, XMPP_PASSWORD, XMPP_DELIVERY_RECEIPTS, XMPP_RECEIPT_TIMEOUT,
+				XMPP_RECEIPT_RETRIES, XMPP_PING_INTERVAL, XMPP_PING_FAILURES,
+				XMPP_ROSTER_INACTIVE_DAYS, XMPP_ROSTER_MAX_ENTRIES, XMPP_PRESENCE_MODE, XMPP_PRESENCE_TTL
 		};
 	}
 
-	private void setParams(Map params)
+	private void setParams(Map<String, String> params)
 	{
+		settings = settingsOf(params);
 		if(params.containsKey(XMPP_SERVER))
 		{
 			xmppServer = (String) params.get(XMPP_SERVER);
@@ -111,12 +289,96 @@ public class JabberTransport implements IMTransport
 				xmppPort = DEFAULT_PORT;
 			}
 		}
+		if(params.containsKey(XMPP_DELIVERY_RECEIPTS))
+		{
+			requestReceipts = "true".equalsIgnoreCase(((String) params.get(XMPP_DELIVERY_RECEIPTS)).trim());
+		}
+		initMetrics(Metrics.forComponent("transport:" + xmppLogin + "@" + xmppServer + ":" + xmppPort));
+		receiptTimeout = parseInt(params, XMPP_RECEIPT_TIMEOUT, DEFAULT_RECEIPT_TIMEOUT);
+		receiptRetries = parseInt(params, XMPP_RECEIPT_RETRIES, DEFAULT_RECEIPT_RETRIES);
+		if(requestReceipts)
+		{
+			deliveryTracker = new DeliveryTracker(new DeliveryTracker.Resender()
+			{
+				@Override
+				public boolean resend(Message message)
+				{
+					return resendMessage(message);
+				}
+
+				@Override
+				public boolean isAvailable(String jid)
+				{
+					if( ! isAuthenticated())
+						return true; // resend() waits for the connection
+					try
+					{
+						return getContactStatusUntimed(jid) != IMStatus.OFFLINE;
+					}
+					catch(JabberServerConnectionException e)
+					{
+						return true;
+					}
+				}
+			}, receiptTimeout, receiptRetries);
+		}
+		int pingInterval = parseInt(params, XMPP_PING_INTERVAL, DEFAULT_PING_INTERVAL);
+		if(pingInterval > 0)
+		{
+			pinger = new KeepAlivePinger(new KeepAlivePinger.Callback()
+			{
+				@Override
+				public Connection getConnection()
+				{
+					return xmppConnection;
+				}
+
+				@Override
+				public void connectionDead(int missedPings)
+				{
+					log.warn("Jabber server " + xmppServer + ":" + xmppPort + " did not answer " + missedPings
+							+ " pings; reconnecting.");
+					reconnect();
+				}
+			}, pingInterval, parseInt(params, XMPP_PING_FAILURES, DEFAULT_PING_FAILURES));
+		}
+		if(params.containsKey(XMPP_PRESENCE_MODE) && "probe".equalsIgnoreCase(((String) params.get(XMPP_PRESENCE_MODE)).trim()))
+		{
+			presenceCache = new PresenceProbeCache(parseInt(params, XMPP_PRESENCE_TTL, DEFAULT_PRESENCE_TTL),
+					SmackConfiguration.getPacketReplyTimeout(), MAX_PROBED_CONTACTS);
+		}
+		rosterMaintainer = new RosterMaintainer(new RosterMaintainer.RosterSource()
+		{
+			@Override
+			public Roster getRoster()
+			{
+				// fetching the roster would defeat the purpose of probe mode
+				return isAuthenticated() && presenceCache == null ? xmppConnection.getRoster() : null;
+			}
+		}, ROSTER_GROUP, parseInt(params, XMPP_ROSTER_INACTIVE_DAYS, DEFAULT_ROSTER_INACTIVE_DAYS), parseInt(params,
+				XMPP_ROSTER_MAX_ENTRIES, DEFAULT_ROSTER_MAX_ENTRIES));
+	}
+
+	private static int parseInt(Map params, String key, int defaultValue)
+	{
+		if(params.containsKey(key))
+		{
+			try
+			{
+				return Integer.parseInt(((String) params.get(key)).trim());
+			}
+			catch(NumberFormatException e)
+			{
+				log.warn("Invalid value '" + params.get(key) + "' for '" + key + "'; using " + defaultValue);
+			}
+		}
+		return defaultValue;
 	}
 
 	@Override
 	public void connect() throws JabberServerConnectionException
 	{
-		if(isConnected())
+		if(isConnected() || closed)
 			return;
 		if((xmppServer != null && ! xmppServer.isEmpty())
 				&& (xmppLogin != null && ! xmppLogin.isEmpty())
@@ -130,19 +392,241 @@ public class JabberTransport implements IMTransport
 			// Firstly this plugin itself has a reconnection mechanism and
 			// secondly the Smack ReconnectionManager is way too intense
 			xmppConfiguration.setReconnectionAllowed(false);
+			if(presenceCache != null)
+			{
+				// There is no roster to download, and no initial presence
+				// either: broadcast to the whole roster, it would make the
+				// server probe every contact on our behalf. Probed contacts
+				// are sent a directed presence instead, so that their
+				// receipts and replies still reach this resource.
+				xmppConfiguration.setRosterLoadedAtLogin(false);
+				xmppConfiguration.setSendPresence(false);
+			}
 			xmppConnection = new XMPPConnection(xmppConfiguration);
 			try
 			{
+				long start = LatencyHistogram.start();
 				xmppConnection.connect();
+				connectTimer.recordSince(start);
+				if(deliveryTracker != null)
+				{
+					xmppConnection.addPacketListener(new PacketListener()
+					{
+						@Override
+						public void processPacket(Packet packet)
+						{
+							DeliveryReceipt receipt = (DeliveryReceipt) packet.getExtension(DeliveryReceipt.ELEMENT,
+									DeliveryReceipt.NAMESPACE);
+							long latency = deliveryTracker.acknowledge(receipt.getId());
+							if(latency >= 0)
+								receiptTimer.record(latency);
+						}
+					}, new PacketExtensionFilter(DeliveryReceipt.ELEMENT, DeliveryReceipt.NAMESPACE));
+					deliveryTracker.start();
+				}
+				xmppConnection.addPacketListener(new PacketListener()
+				{
+					@Override
+					public void processPacket(Packet packet)
+					{
+						xmppConnection.sendPacket(IQ.createResultIQ((IQ) packet));
+					}
+				}, new AndFilter(new PacketTypeFilter(Ping.class), new IQTypeFilter(IQ.Type.GET)));
+				if(pinger != null)
+				{
+					pinger.start();
+				}
+				if(presenceCache != null)
+				{
+					presenceCache.listenTo(xmppConnection);
+				}
 			}
 			catch(XMPPException e)
 			{
+				connectErrors.incrementAndGet();
 				throw new JabberServerConnectionException("Error connecting to Jabber server " + xmppServer + ":"
 						+ xmppPort, e);
 			}
 		}
 	}
 
+	@Override
+	public State getState()
+	{
+		return state;
+	}
+
+	@Override
+	public void warmUp(Runnable onReady)
+	{
+		synchronized(this)
+		{
+			if(state != State.READY)
+			{
+				if(onReady != null && ! readyCallbacks.contains(onReady))
+					readyCallbacks.add(onReady);
+				if( ! warmingUp)
+				{
+					warmingUp = true;
+					state = State.CONNECTING;
+					Thread thread = new Thread(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							warmUpUntilReady();
+						}
+					}, "jabber-warmup-" + xmppServer);
+					thread.setDaemon(true);
+					thread.start();
+				}
+				return;
+			}
+		}
+		if(onReady != null)
+			onReady.run();
+	}
+
+	private void warmUpUntilReady()
+	{
+		long retryDelay = WARM_UP_RETRY_MIN_MILLIS;
+		while(true)
+		{
+			if(closed)
+				return;
+			long start = System.currentTimeMillis();
+			try
+			{
+				connect();
+				authenticate();
+				if( ! isAuthenticated())
+					throw new JabberServerConnectionException("Could not log in to " + xmppServer + ":" + xmppPort
+							+ " as " + xmppLogin);
+				long loggedIn = System.currentTimeMillis();
+				if(chatListener != null)
+				{
+					setTransportListener(chatListener);
+				}
+				if(presenceCache != null)
+				{
+					log.info("Connected to " + xmppServer + ":" + xmppPort + " as " + xmppLogin + " in "
+							+ (loggedIn - start) + "ms; presence will be probed on demand.");
+					break;
+				}
+				// blocks until the server has sent the roster
+				Roster roster = xmppConnection.getRoster();
+				rosterLoadMillis = System.currentTimeMillis() - loggedIn;
+				rosterTimer.record(TimeUnit.MILLISECONDS.toNanos(rosterLoadMillis));
+				log.info("Connected to " + xmppServer + ":" + xmppPort + " as " + xmppLogin + " in "
+						+ (loggedIn - start) + "ms; roster of " + roster.getEntryCount() + " entries loaded in "
+						+ rosterLoadMillis + "ms.");
+				rosterMaintainer.start();
+				break;
+			}
+			catch(JabberServerConnectionException e)
+			{
+				state = State.FAILED;
+				log.error(e.getMessage() + "; retrying in " + retryDelay / 1000 + "s");
+			}
+			catch(RuntimeException e)
+			{
+				// Smack throws IllegalStateException and NullPointerException
+				// from connect, login and getRoster on a half-open connection
+				connectErrors.incrementAndGet();
+				state = State.FAILED;
+				log.error("Error connecting to " + xmppServer + ":" + xmppPort + "; retrying in " + retryDelay / 1000
+						+ "s", e);
+			}
+			try
+			{
+				Thread.sleep(retryDelay);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			retryDelay = Math.min(retryDelay * 2, WARM_UP_RETRY_MAX_MILLIS);
+			state = State.CONNECTING;
+		}
+		List<Runnable> callbacks;
+		synchronized(this)
+		{
+			state = State.READY;
+			warmingUp = false;
+			callbacks = new ArrayList<Runnable>(readyCallbacks);
+			readyCallbacks.clear();
+		}
+		for(Runnable callback : callbacks)
+		{
+			try
+			{
+				callback.run();
+			}
+			catch(RuntimeException e)
+			{
+				log.error("Error running Jabber transport ready callback", e);
+			}
+		}
+	}
+
+	/**
+	 * Drop the current connection, which is presumed dead, and establish a
+	 * new one straight away rather than waiting for the next notification.
+	 * The transport is not READY until the warm-up has logged in again, so
+	 * listeners hold on to their events meanwhile.
+	 */
+	private void reconnect()
+	{
+		synchronized(this)
+		{
+			if(closed)
+				return;
+			reconnects.incrementAndGet();
+			state = State.FAILED;
+			if(xmppConnection != null)
+			{
+				try
+				{
+					xmppConnection.disconnect();
+				}
+				catch(RuntimeException e)
+				{
+					log.debug("Error closing dead connection to " + xmppServer + ":" + xmppPort, e);
+				}
+			}
+		}
+		warmUp(null);
+	}
+
+	/**
+	 * Stop the background threads and disconnect. A closed transport is not
+	 * connected again.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		closed = true;
+		state = State.FAILED;
+		if(pinger != null)
+			pinger.stop();
+		if(deliveryTracker != null)
+			deliveryTracker.stop();
+		if(rosterMaintainer != null)
+			rosterMaintainer.stop();
+		if(xmppConnection != null)
+		{
+			try
+			{
+				xmppConnection.disconnect();
+			}
+			catch(RuntimeException e)
+			{
+				log.debug("Error closing connection to " + xmppServer + ":" + xmppPort, e);
+			}
+		}
+	}
+
 	/**
 	 * Log in to server. Must already be connected.
 	 * 
@@ -160,11 +644,14 @@ public class JabberTransport implements IMTransport
 			if(xmppLogin != null && ! xmppLogin.isEmpty() &&
 					xmppPassword != null)
 			{
+				long start = LatencyHistogram.start();
 				xmppConnection.login(xmppLogin, xmppPassword);
+				loginTimer.recordSince(start);
 			}
 		}
 		catch(XMPPException e)
 		{
+			connectErrors.incrementAndGet();
 			log.error("Error logging in to " + xmppServer + ":" + xmppPort + " : " + e.getMessage(), e);
 		}
 	}
@@ -191,30 +678,104 @@ public class JabberTransport implements IMTransport
 	}
 
 	@Override
-	public synchronized void sendMessage(String toJID, String msg)
+	public void sendMessage(String toJID, String msg)
+	{
+		sendMessage(toJID, msg, - 1, System.nanoTime());
+	}
+
+	@Override
+	public boolean sendMessage(String toJID, String msg, long eventTimeMillis)
+	{
+		return sendMessage(toJID, msg, eventTimeMillis, System.nanoTime());
+	}
+
+	/**
+	 * @param eventTimeMillis Wall clock time of the originating event, or -1
+	 *            if the message isn't about an event.
+	 * @return Whether the message was written to the connection.
+	 */
+	private synchronized boolean sendMessage(String toJID, String msg, long eventTimeMillis, long enqueuedNanos)
 	{
 		if(isConnected())
 		{
 			try
 			{
-				Roster roster = xmppConnection.getRoster();
-				if( ! roster.contains(toJID))
+				if(presenceCache == null)
 				{
-					roster.createEntry(toJID, toJID,
-							new String[]
-							{
-								"NotificationRecipients"
-							});
+					addToRoster(toJID);
 				}
 				Chat chat = xmppConnection.getChatManager().createChat(toJID,
 						null);
-				chat.sendMessage(msg);
+				Message message = new Message(toJID, Message.Type.chat);
+				message.setBody(msg);
+				if(deliveryTracker != null)
+				{
+					message.addExtension(new DeliveryReceiptRequest());
+				}
+				chat.sendMessage(message);
+				if(deliveryTracker != null)
+				{
+					deliveryTracker.track(message, enqueuedNanos);
+				}
+				sendTimer.recordSince(enqueuedNanos);
+				if(eventTimeMillis > 0)
+					eventToSendTimer.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - eventTimeMillis));
+				sends.incrementAndGet();
+				return true;
 			}
 			catch(XMPPException e)
 			{
+				sendErrors.incrementAndGet();
 				log.error("Error sending XMPP message to " + toJID, e);
 			}
 		}
+		return false;
+	}
+
+	private void addToRoster(String toJID) throws XMPPException
+	{
+		Roster roster = xmppConnection.getRoster();
+		if( ! roster.contains(toJID))
+		{
+			roster.createEntry(toJID, toJID,
+					new String[]
+					{
+						ROSTER_GROUP
+					});
+			rosterMaintainer.entryAdded(roster);
+		}
+		rosterMaintainer.notified(toJID);
+	}
+
+	/**
+	 * Re-send a message whose delivery receipt did not arrive in time. The
+	 * stanza id is kept so a late receipt for the first copy still counts.
+	 */
+	private boolean resendMessage(Message message)
+	{
+		if( ! isConnected())
+			return false;
+		log.debug("Re-sending unacknowledged message " + message.getPacketID() + " to " + message.getTo());
+		xmppConnection.sendPacket(message);
+		return true;
+	}
+
+	/**
+	 * @return How long the roster took to arrive after the last login, in
+	 *         milliseconds, or -1 if not logged in yet.
+	 */
+	public long getRosterLoadMillis()
+	{
+		return rosterLoadMillis;
+	}
+
+	/**
+	 * @return Tracker of unacknowledged messages, or null if delivery receipts
+	 *         are not requested.
+	 */
+	public DeliveryTracker getDeliveryTracker()
+	{
+		return deliveryTracker;
 	}
 
 	@Override
@@ -266,6 +827,19 @@ public class JabberTransport implements IMTransport
 
 	@Override
 	public IMStatus getContactStatus(String contact) throws JabberServerConnectionException
+	{
+		long start = LatencyHistogram.start();
+		try
+		{
+			return getContactStatusUntimed(contact);
+		}
+		finally
+		{
+			presenceTimer.recordSince(start);
+		}
+	}
+
+	private IMStatus getContactStatusUntimed(String contact) throws JabberServerConnectionException
 	{
 		IMStatus result = IMStatus.OFFLINE;
 		if( ! isConnected())
@@ -275,11 +849,18 @@ public class JabberTransport implements IMTransport
 		}
 		if( ! isAuthenticated()) authenticate();
 
-		if(isConnected() && isAuthenticated())
+		if(isConnected() && isAuthenticated() && presenceCache != null)
+		{
+			result = presenceCache.getStatus(xmppConnection, contact);
+			if(log.isDebugEnabled())
+				log.debug("User " + contact + " is " + result + " (probed)");
+		}
+		else if(isConnected() && isAuthenticated())
 		{
 			Roster roster = xmppConnection.getRoster();
 			Presence presence = roster.getPresence(contact);
-			log.debug("User " + contact + " is " + presence);
+			if(log.isDebugEnabled())
+				log.debug("User " + contact + " is " + presence);
 			if(presence.getType() == Type.available)
 			{
 				result = IMStatus.ONLINE;
@@ -308,7 +889,7 @@ public class JabberTransport implements IMTransport
 				if(entry == null)
 					log.warn("Asked to notify " + contact + ", but this user is not on our roster (presence: "
 							+ presence + ")");
-				else
+				else if(log.isDebugEnabled())
 					log.debug("Not notifying " + contact + ", in status " + presence);
 			}
 		}
@@ -322,4 +903,10 @@ public class JabberTransport implements IMTransport
 	{
 		return xmppServer;
 	}
+
+	@Override
+	public String getLogin()
+	{
+		return xmppLogin;
+	}
 }
@@ -0,0 +1,22 @@
+package com.atlassian.jira.ext.jabbernotifier.transport;
+
+import java.util.Map;
+
+/**
+ * The default transport: an XMPP connection shared by every listener with the
+ * same server and login.
+ */
+public class JabberTransportFactory implements IMTransportFactory
+{
+	@Override
+	public String[] getAcceptedParams()
+	{
+		return new JabberTransport().getAcceptedParams();
+	}
+
+	@Override
+	public IMTransport create(Map<String, String> params)
+	{
+		return JabberTransport.create(params);
+	}
+}
@@ -0,0 +1,81 @@
+package com.atlassian.jira.ext.jabbernotifier.transport;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Looks up transport factories by name.
+ */
+public final class TransportFactories
+{
+	public static final String JABBER = "jabber";
+
+	public static final String MEMORY = "memory";
+
+	private TransportFactories()
+	{
+	}
+
+	/**
+	 * JIRA asks a listener for its parameters before configuring it, when
+	 * the transport it will use is not known yet, so it offers the
+	 * parameters of every built-in transport.
+	 *
+	 * @param selected The factory the listener was configured with, which
+	 *            may be one that is not built in; null if none.
+	 * @return The parameters of the built-in transports and of the selected
+	 *         one, each listed once.
+	 */
+	public static String[] getAcceptedParams(IMTransportFactory selected)
+	{
+		Set<String> params = new LinkedHashSet<String>();
+		params.addAll(Arrays.asList(new JabberTransportFactory().getAcceptedParams()));
+		params.addAll(Arrays.asList(new InMemoryTransport.Factory().getAcceptedParams()));
+		if(selected != null)
+		{
+			params.addAll(Arrays.asList(selected.getAcceptedParams()));
+		}
+		return params.toArray(new String[params.size()]);
+	}
+
+	/**
+	 * @param name {@link #JABBER}, {@link #MEMORY}, or the class name of an
+	 *            {@link IMTransportFactory}. Null or blank means
+	 *            {@link #JABBER}.
+	 * @throws IllegalArgumentException If no factory goes by the name.
+	 */
+	public static IMTransportFactory forName(String name)
+	{
+		if(name == null || name.trim().length() == 0 || JABBER.equalsIgnoreCase(name.trim()))
+		{
+			return new JabberTransportFactory();
+		}
+		name = name.trim();
+		if(MEMORY.equalsIgnoreCase(name))
+		{
+			return new InMemoryTransport.Factory();
+		}
+		try
+		{
+			Class<?> type = Class.forName(name, true, TransportFactories.class.getClassLoader());
+			return type.asSubclass(IMTransportFactory.class).newInstance();
+		}
+		catch(ClassNotFoundException e)
+		{
+			throw new IllegalArgumentException("Unknown transport '" + name + "'", e);
+		}
+		catch(ClassCastException e)
+		{
+			throw new IllegalArgumentException(name + " does not implement " + IMTransportFactory.class.getName(), e);
+		}
+		catch(InstantiationException e)
+		{
+			throw new IllegalArgumentException("Can't instantiate transport factory " + name, e);
+		}
+		catch(IllegalAccessException e)
+		{
+			throw new IllegalArgumentException("Can't instantiate transport factory " + name, e);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.atlassian.jira.ext.jabbernotifier.transport.ping;
+
+import org.apache.log4j.Logger;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically pings the Jabber server (XEP-0199) so that half-open TCP
+ * connections are noticed long before the operating system gives up on them.
+ * After a configurable number of consecutive unanswered pings the
+ * {@link Callback} is told the connection is dead.
+ */
+public class KeepAlivePinger
+{
+	private static final Logger log = Logger.getLogger(KeepAlivePinger.class);
+
+	public interface Callback
+	{
+		/**
+		 * @return Connection to ping, or null if there is none at the moment.
+		 */
+		Connection getConnection();
+
+		/**
+		 * Called on the pinger thread once the failure threshold is reached.
+		 */
+		void connectionDead(int missedPings);
+	}
+
+	private final Callback callback;
+
+	private final int intervalSeconds;
+
+	private final int failureThreshold;
+
+	private int missedPings;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param intervalSeconds Seconds between pings.
+	 * @param failureThreshold Consecutive unanswered pings after which the
+	 *            connection is considered dead.
+	 */
+	public KeepAlivePinger(Callback callback, int intervalSeconds, int failureThreshold)
+	{
+		this.callback = callback;
+		this.intervalSeconds = intervalSeconds;
+		this.failureThreshold = Math.max(1, failureThreshold);
+	}
+
+	public synchronized void start()
+	{
+		if(scheduler != null)
+			return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "jabber-keepalive");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					pingOnce();
+				}
+				catch(RuntimeException e)
+				{
+					log.error("Error pinging Jabber server", e);
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop()
+	{
+		if(scheduler != null)
+		{
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	void pingOnce()
+	{
+		Connection connection = callback.getConnection();
+		if(connection == null || ! connection.isAuthenticated())
+		{
+			// nothing to keep alive; reconnecting is up to the transport
+			missedPings = 0;
+			return;
+		}
+		if(ping(connection))
+		{
+			missedPings = 0;
+			return;
+		}
+		missedPings++;
+		log.warn("Ping to " + connection.getServiceName() + " unanswered (" + missedPings + "/" + failureThreshold + ")");
+		if(missedPings >= failureThreshold)
+		{
+			int missed = missedPings;
+			missedPings = 0;
+			callback.connectionDead(missed);
+		}
+	}
+
+	private boolean ping(Connection connection)
+	{
+		Ping ping = new Ping(connection.getServiceName());
+		PacketCollector collector = connection.createPacketCollector(new PacketIDFilter(ping.getPacketID()));
+		try
+		{
+			connection.sendPacket(ping);
+			Packet reply = collector.nextResult(SmackConfiguration.getPacketReplyTimeout());
+			// an error reply (e.g. feature-not-implemented) still proves the
+			// stream is alive
+			return reply instanceof IQ;
+		}
+		finally
+		{
+			collector.cancel();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package com.atlassian.jira.ext.jabbernotifier.transport.ping;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * XEP-0199 ping request.
+ */
+public class Ping extends IQ
+{
+	public static final String ELEMENT = "ping";
+
+	public static final String NAMESPACE = "urn:xmpp:ping";
+
+	public Ping()
+	{
+		setType(Type.GET);
+	}
+
+	public Ping(String to)
+	{
+		this();
+		setTo(to);
+	}
+
+	@Override
+	public String getChildElementXML()
+	{
+		return "<" + ELEMENT + " xmlns=\"" + NAMESPACE + "\"/>";
+	}
+
+	/**
+	 * Parses pings sent to us by the server, so that they can be answered.
+	 * Register with the {@link org.jivesoftware.smack.provider.ProviderManager}.
+	 */
+	public static class Provider implements IQProvider
+	{
+		@Override
+		public IQ parseIQ(XmlPullParser parser) throws Exception
+		{
+			return new Ping();
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.atlassian.jira.ext.jabbernotifier.transport.presence;
+
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Presence probe (RFC 6121 section 4.3), asking the contact's server for the
+ * contact's current presence. Smack's {@link org.jivesoftware.smack.packet.Presence}
+ * has no probe type, hence this packet.
+ */
+public class PresenceProbe extends Packet
+{
+	public PresenceProbe(String to)
+	{
+		setTo(to);
+	}
+
+	@Override
+	public String toXML()
+	{
+		return "<presence type=\"probe\" to=\"" + getTo() + "\" id=\"" + getPacketID() + "\"/>";
+	}
+}
@@ -0,0 +1,226 @@
+package com.atlassian.jira.ext.jabbernotifier.transport.presence;
+
+import com.atlassian.jira.ext.jabbernotifier.transport.IMTransport.IMStatus;
+import org.apache.log4j.Logger;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.StringUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Presence of notification candidates, fetched on demand with directed
+ * probes instead of keeping the presence of the whole roster.
+ * <p>
+ * Only JIDs that have been asked for are tracked, each as a status plus an
+ * expiry time, and the cache is capped in size (least recently used entries
+ * are evicted). Presence pushed by the server for a tracked JID refreshes its
+ * entry; presence for anybody else is ignored.
+ * <p>
+ * Lookups never wait for the network. A contact seen for the first time is
+ * {@link IMStatus#UNKNOWN} until its server answers the probe; an expired
+ * entry keeps its last status while it is probed again. A contact that
+ * leaves a probe unanswered is sent a subscription request, as servers only
+ * answer probes from subscribed contacts, but only once per JID.
+ * <p>
+ * No initial presence is broadcast in this mode, so every probe goes
+ * together with a directed presence: it is what tells the contact's server
+ * that this resource is available to it, and it is renewed with each probe
+ * as a reconnection forgets it.
+ * <p>
+ * This relies on the Jabber server routing probes sent by clients, which
+ * RFC 6121 permits but does not require.
+ */
+public class PresenceProbeCache
+{
+	private static final Logger log = Logger.getLogger(PresenceProbeCache.class);
+
+	/**
+	 * How many more JIDs than tracked ones to remember having asked for a
+	 * subscription.
+	 */
+	private static final int SUBSCRIBED_PER_ENTRY = 4;
+
+	private final long ttlMillis;
+
+	private final long probeTimeoutMillis;
+
+	// guarded by itself, as is every CachedPresence in it
+	private final Map<String, CachedPresence> entries;
+
+	// guarded by entries
+	private final Map<String, Boolean> subscribeRequested;
+
+	/**
+	 * @param ttlSeconds How long a probed status is trusted.
+	 * @param probeTimeoutMillis How long an answer to a probe may take before
+	 *            the contact is asked for a subscription.
+	 * @param maxEntries Maximum number of JIDs tracked.
+	 */
+	public PresenceProbeCache(int ttlSeconds, long probeTimeoutMillis, final int maxEntries)
+	{
+		this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+		this.probeTimeoutMillis = probeTimeoutMillis;
+		this.entries = new LinkedHashMap<String, CachedPresence>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedPresence> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+		this.subscribeRequested = new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+			{
+				return size() > maxEntries * SUBSCRIBED_PER_ENTRY;
+			}
+		};
+	}
+
+	/**
+	 * Start listening for presence of tracked JIDs on the given connection.
+	 * Must be called for every new connection.
+	 */
+	public void listenTo(Connection connection)
+	{
+		connection.addPacketListener(new PacketListener()
+		{
+			@Override
+			public void processPacket(Packet packet)
+			{
+				update((Presence) packet);
+			}
+		}, new PacketTypeFilter(Presence.class));
+	}
+
+	/**
+	 * Get the last known status of a contact, sending a probe if it is unknown
+	 * or stale. Does not wait for the answer.
+	 *
+	 * @return Last probed status, or {@link IMStatus#UNKNOWN} if the contact's
+	 *         server has not answered yet.
+	 */
+	public IMStatus getStatus(Connection connection, String jid)
+	{
+		String bareJid = StringUtils.parseBareAddress(jid);
+		long now = System.currentTimeMillis();
+		boolean probe = false;
+		boolean subscribe = false;
+		IMStatus status;
+		synchronized(entries)
+		{
+			CachedPresence entry = entries.get(bareJid);
+			if(entry == null)
+			{
+				entry = new CachedPresence();
+				entries.put(bareJid, entry);
+			}
+			if(entry.isUnanswered(now, probeTimeoutMillis) && subscribeRequested.put(bareJid, Boolean.TRUE) == null)
+			{
+				// servers only answer probes from subscribed contacts, so
+				// this may be somebody we have never notified before
+				subscribe = true;
+			}
+			if(now >= entry.expiresAt)
+			{
+				entry.probed(now, ttlMillis);
+				probe = true;
+			}
+			status = entry.status;
+		}
+		if(subscribe)
+		{
+			if(log.isDebugEnabled())
+				log.debug("No answer to presence probe for " + bareJid + " within " + probeTimeoutMillis
+						+ "ms; asking for a subscription");
+			Presence request = new Presence(Presence.Type.subscribe);
+			request.setTo(bareJid);
+			connection.sendPacket(request);
+		}
+		if(probe)
+		{
+			Presence available = new Presence(Presence.Type.available);
+			available.setTo(bareJid);
+			connection.sendPacket(available);
+			connection.sendPacket(new PresenceProbe(bareJid));
+		}
+		return status;
+	}
+
+	public int size()
+	{
+		synchronized(entries)
+		{
+			return entries.size();
+		}
+	}
+
+	void update(Presence presence)
+	{
+		if(presence.getFrom() == null)
+			return;
+		String bareJid = StringUtils.parseBareAddress(presence.getFrom());
+		IMStatus status = toStatus(presence);
+		synchronized(entries)
+		{
+			CachedPresence entry = entries.get(bareJid);
+			if(entry == null)
+				return; // not a candidate recipient
+			// With several resources online, one going offline does not make the
+			// contact unavailable; a stale status is corrected on expiry.
+			if(status != IMStatus.OFFLINE || ! entry.answered)
+				entry.status = status;
+			entry.answered = true;
+		}
+	}
+
+	/**
+	 * Map an XMPP presence onto an IM status.
+	 */
+	public static IMStatus toStatus(Presence presence)
+	{
+		if(presence.getType() != Presence.Type.available)
+			return IMStatus.OFFLINE;
+		Presence.Mode mode = presence.getMode();
+		if(mode == Presence.Mode.dnd)
+			return IMStatus.BUSY;
+		if(mode == Presence.Mode.away)
+			return IMStatus.AWAY;
+		if(mode == Presence.Mode.xa)
+			return IMStatus.AWAY_LONG;
+		return IMStatus.ONLINE;
+	}
+
+	private static class CachedPresence
+	{
+		private long expiresAt;
+
+		private long probedAt;
+
+		/**
+		 * Whether the latest probe was answered.
+		 */
+		private boolean answered;
+
+		private IMStatus status = IMStatus.UNKNOWN;
+
+		void probed(long now, long ttlMillis)
+		{
+			probedAt = now;
+			expiresAt = now + ttlMillis;
+			answered = false;
+		}
+
+		boolean isUnanswered(long now, long probeTimeoutMillis)
+		{
+			return probedAt > 0 && ! answered && now - probedAt >= probeTimeoutMillis;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.atlassian.jira.ext.jabbernotifier.transport.receipts;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.provider.PacketExtensionProvider;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * XEP-0184 receipt, sent back by a recipient's client once the message with
+ * the given stanza id has been delivered.
+ */
+public class DeliveryReceipt implements PacketExtension
+{
+	public static final String NAMESPACE = "urn:xmpp:receipts";
+
+	public static final String ELEMENT = "received";
+
+	private final String id;
+
+	public DeliveryReceipt(String id)
+	{
+		this.id = id;
+	}
+
+	/**
+	 * @return Stanza id of the acknowledged message, possibly null for
+	 *         clients implementing an early draft of the XEP.
+	 */
+	public String getId()
+	{
+		return id;
+	}
+
+	@Override
+	public String getElementName()
+	{
+		return ELEMENT;
+	}
+
+	@Override
+	public String getNamespace()
+	{
+		return NAMESPACE;
+	}
+
+	@Override
+	public String toXML()
+	{
+		return "<" + ELEMENT + " xmlns=\"" + NAMESPACE + "\"" + (id != null ? " id=\"" + id + "\"" : "") + "/>";
+	}
+
+	/**
+	 * Parses incoming &lt;received/&gt; elements. Register with the
+	 * {@link org.jivesoftware.smack.provider.ProviderManager}.
+	 */
+	public static class Provider implements PacketExtensionProvider
+	{
+		@Override
+		public PacketExtension parseExtension(XmlPullParser parser) throws Exception
+		{
+			return new DeliveryReceipt(parser.getAttributeValue("", "id"));
+		}
+	}
+}
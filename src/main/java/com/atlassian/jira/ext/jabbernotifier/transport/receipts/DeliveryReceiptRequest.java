@@ -0,0 +1,30 @@
+package com.atlassian.jira.ext.jabbernotifier.transport.receipts;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+
+/**
+ * XEP-0184 receipt request, attached to an outgoing message to ask the
+ * recipient's client to acknowledge it.
+ */
+public class DeliveryReceiptRequest implements PacketExtension
+{
+	public static final String ELEMENT = "request";
+
+	@Override
+	public String getElementName()
+	{
+		return ELEMENT;
+	}
+
+	@Override
+	public String getNamespace()
+	{
+		return DeliveryReceipt.NAMESPACE;
+	}
+
+	@Override
+	public String toXML()
+	{
+		return "<" + ELEMENT + " xmlns=\"" + DeliveryReceipt.NAMESPACE + "\"/>";
+	}
+}
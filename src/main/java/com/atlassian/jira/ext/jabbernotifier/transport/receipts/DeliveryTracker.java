@@ -0,0 +1,286 @@
+package com.atlassian.jira.ext.jabbernotifier.transport.receipts;
+
+import org.apache.log4j.Logger;
+import org.jivesoftware.smack.packet.Message;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of messages sent with a receipt request until the recipient
+ * acknowledges them. Messages not acknowledged within the timeout are handed
+ * back to the {@link Resender}; after the last retry they are given up on.
+ * <p>
+ * Only recipients that have acknowledged a message before get theirs re-sent:
+ * a client without receipt support (XEP-0184) never answers, and re-sending
+ * to it would only repeat the notification. Nor is anything re-sent to a
+ * recipient who has gone offline; the server keeps the first copy for them.
+ * <p>
+ * Sending and acknowledging never block: the in-flight table is a concurrent
+ * map keyed by stanza id, and timeouts are handled by a single background
+ * sweeper thread.
+ */
+public class DeliveryTracker
+{
+	private static final Logger log = Logger.getLogger(DeliveryTracker.class);
+
+	/**
+	 * Callback used to re-send a message whose receipt did not arrive in time.
+	 */
+	public interface Resender
+	{
+		/**
+		 * @return Whether the message was handed to the connection.
+		 */
+		boolean resend(Message message);
+
+		/**
+		 * @return Whether the recipient is still online.
+		 */
+		boolean isAvailable(String jid);
+	}
+
+	/**
+	 * Recipients beyond this many are not remembered as supporting receipts.
+	 */
+	private static final int MAX_RECEIPT_CAPABLE = 10000;
+
+	private final ConcurrentMap<String, PendingDelivery> inFlight = new ConcurrentHashMap<String, PendingDelivery>();
+
+	/**
+	 * Bare JIDs of the recipients that have sent a receipt.
+	 */
+	private final ConcurrentMap<String, Boolean> receiptCapable = new ConcurrentHashMap<String, Boolean>();
+
+	private final Resender resender;
+
+	private final long timeoutNanos;
+
+	private final int maxRetries;
+
+	private final AtomicLong acknowledged = new AtomicLong();
+
+	private final AtomicLong retried = new AtomicLong();
+
+	private final AtomicLong expired = new AtomicLong();
+
+	private final AtomicLong unconfirmed = new AtomicLong();
+
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	private ScheduledExecutorService sweeper;
+
+	/**
+	 * @param resender Re-sends unacknowledged messages.
+	 * @param timeoutSeconds How long to wait for a receipt before re-sending.
+	 * @param maxRetries How many times a message is re-sent before giving up.
+	 */
+	public DeliveryTracker(Resender resender, int timeoutSeconds, int maxRetries)
+	{
+		this.resender = resender;
+		this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+		this.maxRetries = maxRetries;
+	}
+
+	public synchronized void start()
+	{
+		if(sweeper != null)
+			return;
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "jabber-receipt-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(timeoutNanos) / 2);
+		sweeper.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					sweep(System.nanoTime());
+				}
+				catch(RuntimeException e)
+				{
+					log.error("Error checking for unacknowledged Jabber messages", e);
+				}
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop()
+	{
+		if(sweeper != null)
+		{
+			sweeper.shutdownNow();
+			sweeper = null;
+		}
+	}
+
+	/**
+	 * Register a message that carries a receipt request.
+	 *
+	 * @param message Message just sent; must have a stanza id.
+	 * @param enqueuedNanos {@link System#nanoTime()} at which the message was
+	 *            handed to the transport.
+	 */
+	public void track(Message message, long enqueuedNanos)
+	{
+		boolean resend = receiptCapable.containsKey(bareJid(message.getTo()));
+		inFlight.put(message.getPacketID(), new PendingDelivery(message, enqueuedNanos, resend));
+	}
+
+	/**
+	 * Record a receipt.
+	 *
+	 * @return Latency from enqueue to receipt in nanoseconds, or -1 if the id
+	 *         is unknown (duplicate receipt, or already given up on).
+	 */
+	public long acknowledge(String packetId)
+	{
+		if(packetId == null)
+			return - 1;
+		PendingDelivery pending = inFlight.remove(packetId);
+		if(pending == null)
+			return - 1;
+		long latency = System.nanoTime() - pending.enqueuedNanos;
+		acknowledged.incrementAndGet();
+		if(receiptCapable.size() < MAX_RECEIPT_CAPABLE)
+			receiptCapable.put(bareJid(pending.message.getTo()), Boolean.TRUE);
+		totalLatencyNanos.addAndGet(latency);
+		long max = maxLatencyNanos.get();
+		while(latency > max && ! maxLatencyNanos.compareAndSet(max, latency))
+		{
+			max = maxLatencyNanos.get();
+		}
+		if(log.isDebugEnabled())
+			log.debug("Message " + packetId + " to " + pending.message.getTo() + " delivered in "
+					+ TimeUnit.NANOSECONDS.toMillis(latency) + "ms");
+		return latency;
+	}
+
+	void sweep(long now)
+	{
+		Iterator<Map.Entry<String, PendingDelivery>> it = inFlight.entrySet().iterator();
+		while(it.hasNext())
+		{
+			PendingDelivery pending = it.next().getValue();
+			if(now - pending.lastSentNanos < timeoutNanos)
+				continue;
+			if( ! pending.resend)
+			{
+				// the recipient may not support receipts; nothing to wait for
+				it.remove();
+				unconfirmed.incrementAndGet();
+			}
+			else if( ! resender.isAvailable(pending.message.getTo()))
+			{
+				it.remove();
+				expired.incrementAndGet();
+				if(log.isDebugEnabled())
+					log.debug(pending.message.getTo() + " went offline before acknowledging message "
+							+ pending.message.getPacketID() + "; not re-sending it.");
+			}
+			else if(pending.attempts > maxRetries)
+			{
+				it.remove();
+				expired.incrementAndGet();
+				log.warn("No delivery receipt from " + pending.message.getTo() + " for message "
+						+ pending.message.getPacketID() + " after " + pending.attempts + " attempts; giving up.");
+			}
+			else if(resender.resend(pending.message))
+			{
+				pending.attempts++;
+				pending.lastSentNanos = now;
+				retried.incrementAndGet();
+			}
+		}
+	}
+
+	public int getPendingCount()
+	{
+		return inFlight.size();
+	}
+
+	public long getAcknowledgedCount()
+	{
+		return acknowledged.get();
+	}
+
+	public long getRetriedCount()
+	{
+		return retried.get();
+	}
+
+	public long getExpiredCount()
+	{
+		return expired.get();
+	}
+
+	/**
+	 * @return Messages to recipients not known to support receipts, for which
+	 *         no receipt came.
+	 */
+	public long getUnconfirmedCount()
+	{
+		return unconfirmed.get();
+	}
+
+	public long getAverageLatencyMillis()
+	{
+		long count = acknowledged.get();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos.get() / count);
+	}
+
+	public long getMaxLatencyMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get());
+	}
+
+	private static class PendingDelivery
+	{
+		private final Message message;
+
+		private final long enqueuedNanos;
+
+		// only touched by the sweeper thread
+		private long lastSentNanos;
+
+		private int attempts = 1;
+
+		/**
+		 * Whether the recipient was known to support receipts when the
+		 * message was sent.
+		 */
+		private final boolean resend;
+
+		PendingDelivery(Message message, long enqueuedNanos, boolean resend)
+		{
+			this.message = message;
+			this.enqueuedNanos = enqueuedNanos;
+			this.lastSentNanos = enqueuedNanos;
+			this.resend = resend;
+		}
+	}
+
+	private static String bareJid(String jid)
+	{
+		int slash = jid.indexOf('/');
+		return slash < 0 ? jid : jid.substring(0, slash);
+	}
+}
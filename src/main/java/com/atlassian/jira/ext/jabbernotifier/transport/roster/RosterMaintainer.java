@@ -0,0 +1,206 @@
+package com.atlassian.jira.ext.jabbernotifier.transport.roster;
+
+import org.apache.log4j.Logger;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.RosterEntry;
+import org.jivesoftware.smack.RosterGroup;
+import org.jivesoftware.smack.XMPPException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the notification bot's roster from growing without bound. Every
+ * recipient is added to the roster on first notification; this class records
+ * when each of them was last notified and periodically removes entries of
+ * the recipients group that have been inactive for too long, or the least
+ * recently notified ones if the group exceeds its maximum size.
+ * <p>
+ * Only entries in the recipients group are ever removed, so contacts added
+ * to the bot's account by hand are left alone. Entries found on the roster
+ * without a recorded notification (e.g. after a restart) are treated as
+ * notified when first seen.
+ */
+public class RosterMaintainer
+{
+	private static final Logger log = Logger.getLogger(RosterMaintainer.class);
+
+	private static final long PRUNE_INTERVAL_MINUTES = 60;
+
+	public interface RosterSource
+	{
+		/**
+		 * @return Roster of the logged in connection, or null if not logged in.
+		 */
+		Roster getRoster();
+	}
+
+	private final RosterSource rosterSource;
+
+	private final String group;
+
+	private final long inactiveMillis;
+
+	private final int maxEntries;
+
+	private final ConcurrentMap<String, Long> lastNotified = new ConcurrentHashMap<String, Long>();
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param group Roster group holding the entries this class manages.
+	 * @param inactiveDays Remove entries not notified for this many days; 0
+	 *            to never expire entries.
+	 * @param maxEntries Maximum number of entries in the group; 0 for no
+	 *            limit.
+	 */
+	public RosterMaintainer(RosterSource rosterSource, String group, int inactiveDays, int maxEntries)
+	{
+		this.rosterSource = rosterSource;
+		this.group = group;
+		this.inactiveMillis = TimeUnit.DAYS.toMillis(inactiveDays);
+		this.maxEntries = maxEntries;
+	}
+
+	public synchronized void start()
+	{
+		if(scheduler != null)
+			return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "jabber-roster-maintenance");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new PruneTask(), PRUNE_INTERVAL_MINUTES, PRUNE_INTERVAL_MINUTES,
+				TimeUnit.MINUTES);
+	}
+
+	public synchronized void stop()
+	{
+		if(scheduler != null)
+		{
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Record that a message was just sent to the given JID.
+	 */
+	public void notified(String jid)
+	{
+		lastNotified.put(jid, System.currentTimeMillis());
+	}
+
+	/**
+	 * Called when an entry was added to the roster; prunes in the background
+	 * straight away if the recipients group has grown past its limit.
+	 */
+	public synchronized void entryAdded(Roster roster)
+	{
+		if(maxEntries <= 0 || scheduler == null)
+			return;
+		RosterGroup rosterGroup = roster.getGroup(group);
+		if(rosterGroup != null && rosterGroup.getEntryCount() > maxEntries)
+		{
+			scheduler.execute(new PruneTask());
+		}
+	}
+
+	void prune(Roster roster, long now)
+	{
+		RosterGroup rosterGroup = roster.getGroup(group);
+		if(rosterGroup == null)
+			return;
+		List<RosterEntry> entries = new ArrayList<RosterEntry>(rosterGroup.getEntries());
+		Set<String> onRoster = new HashSet<String>(entries.size());
+		for(RosterEntry entry : entries)
+		{
+			onRoster.add(entry.getUser());
+			lastNotified.putIfAbsent(entry.getUser(), now);
+		}
+		lastNotified.keySet().retainAll(onRoster);
+
+		List<RosterEntry> toRemove = new ArrayList<RosterEntry>();
+		List<RosterEntry> kept = new ArrayList<RosterEntry>(entries.size());
+		for(RosterEntry entry : entries)
+		{
+			if(inactiveMillis > 0 && now - lastNotified(entry) > inactiveMillis)
+				toRemove.add(entry);
+			else
+				kept.add(entry);
+		}
+		if(maxEntries > 0 && kept.size() > maxEntries)
+		{
+			Collections.sort(kept, new Comparator<RosterEntry>()
+			{
+				@Override
+				public int compare(RosterEntry a, RosterEntry b)
+				{
+					long la = lastNotified(a);
+					long lb = lastNotified(b);
+					return la < lb ? - 1 : (la == lb ? 0 : 1);
+				}
+			});
+			toRemove.addAll(kept.subList(0, kept.size() - maxEntries));
+		}
+		if(toRemove.isEmpty())
+			return;
+
+		int removed = 0;
+		for(RosterEntry entry : toRemove)
+		{
+			try
+			{
+				roster.removeEntry(entry);
+				lastNotified.remove(entry.getUser());
+				removed++;
+			}
+			catch(XMPPException e)
+			{
+				log.warn("Could not remove " + entry.getUser() + " from roster: " + e.getMessage());
+			}
+		}
+		log.info("Removed " + removed + " inactive entries from roster group " + group + "; " + (entries.size() - removed)
+				+ " remain.");
+	}
+
+	private long lastNotified(RosterEntry entry)
+	{
+		Long last = lastNotified.get(entry.getUser());
+		return last != null ? last : Long.MAX_VALUE;
+	}
+
+	private class PruneTask implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			try
+			{
+				Roster roster = rosterSource.getRoster();
+				if(roster != null)
+					prune(roster, System.currentTimeMillis());
+			}
+			catch(RuntimeException e)
+			{
+				log.error("Error pruning roster group " + group, e);
+			}
+		}
+	}
+}
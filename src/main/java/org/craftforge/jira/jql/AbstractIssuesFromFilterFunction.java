@@ -20,7 +20,7 @@ import com.atlassian.crowd.embedded.api.User;
 import com.atlassian.jira.ComponentManager;
 import com.atlassian.jira.JiraDataType;
 import com.atlassian.jira.JiraDataTypes;
-import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.index.DocumentConstants;
 import com.atlassian.jira.issue.search.SearchProvider;
 import com.atlassian.jira.jql.operand.QueryLiteral;
 import com.atlassian.jira.jql.query.QueryCreationContext;
@@ -29,13 +29,20 @@ import com.atlassian.jira.plugin.jql.function.JqlFunctionModuleDescriptor;
 import com.atlassian.jira.util.I18nHelper;
 import com.atlassian.jira.util.MessageSet;
 import com.atlassian.jira.util.MessageSetImpl;
-import com.atlassian.jira.web.bean.PagerFilter;
 import com.atlassian.query.Query;
+import com.atlassian.query.QueryImpl;
 import com.atlassian.query.clause.TerminalClause;
 import com.atlassian.query.operand.FunctionOperand;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.craftforge.jira.jql.cache.FunctionResultCache;
+import org.craftforge.jira.jql.ids.DistinctIssueIdList;
+import org.craftforge.jira.jql.ids.IssueIdCollector;
+import org.craftforge.jira.jql.ids.IssueIdList;
 import org.craftforge.jira.jql.query.QueryProvider;
 
 /**
@@ -50,6 +57,8 @@ public abstract class AbstractIssuesFromFilterFunction extends AbstractJqlFuncti
 
 	private I18nHelper i18nHelper;
 
+	private FunctionResultCache resultCache;
+
 	public JiraDataType getDataType() {
 		return JiraDataTypes.ISSUE;
 	}
@@ -61,6 +70,8 @@ public abstract class AbstractIssuesFromFilterFunction extends AbstractJqlFuncti
 		searchProvider = componentManager.getSearchProvider();
 		i18nHelper = moduleDescriptor.getI18nBean();
 		this.queryProvider = createQueryProvider(moduleDescriptor, componentManager);
+		resultCache = FunctionResultCache.getInstance();
+		resultCache.start();
 		init(moduleDescriptor, componentManager);
 	}
 	
@@ -68,11 +79,22 @@ public abstract class AbstractIssuesFromFilterFunction extends AbstractJqlFuncti
 	
 	protected abstract QueryProvider createQueryProvider(JqlFunctionModuleDescriptor moduleDescriptor, ComponentManager componentManager);
 
+	/**
+	 * Resolves the ids of the issues the function returns.
+	 *
+	 * @param subquery the query or filter given as the first argument
+	 */
+	protected abstract IssueIdList findResultIds(QueryCreationContext qcc, FunctionOperand fo, Query subquery);
+
 	@Override
 	public boolean isList() {
 		return true;
 	}
 
+	protected I18nHelper getI18nHelper() {
+		return i18nHelper;
+	}
+
 	public MessageSet validate(User user, FunctionOperand operand, TerminalClause tc) {
 		MessageSet messages = new MessageSetImpl();
 		final List<String> args = operand.getArgs();
@@ -82,21 +104,87 @@ public abstract class AbstractIssuesFromFilterFunction extends AbstractJqlFuncti
 		return messages;
 	}
 	
-	protected List<Issue> findIssues(QueryCreationContext qcc, FunctionOperand fo) {
+	/**
+	 * Returns the cached result when the same user evaluated the function with the
+	 * same subquery since the last issue or link change.
+	 */
+	public final List<QueryLiteral> getValues(QueryCreationContext qcc, FunctionOperand fo, TerminalClause tc) {
+		Query subquery = provideSubquery(qcc, fo);
+		FunctionResultCache.Key key = new FunctionResultCache.Key(getFunctionName(), fo.getArgs(),
+				String.valueOf(subquery.getWhereClause()), qcc.getUser(), qcc.isSecurityOverriden());
+		long[] issueIds = resultCache.get(key);
+		if (issueIds == null) {
+			long generation = resultCache.getGeneration();
+			issueIds = findResultIds(qcc, fo, subquery).toArray();
+			resultCache.put(key, generation, issueIds);
+		}
+		return convertToQueryLiterals(fo, issueIds);
+	}
+
+	private Query provideSubquery(QueryCreationContext qcc, FunctionOperand fo) {
 		try {
-			Query query = queryProvider.provide(qcc.getUser(), fo.getArgs().get(0));
-			List<Issue> issues = searchProvider.search(query, qcc.getUser(), PagerFilter.getUnlimitedFilter()).getIssues();
-			return issues;
+			return queryProvider.provide(qcc.getUser(), fo.getArgs().get(0));
 		} catch (Exception ex) {
 			throw new RuntimeException(ex);
 		}
 	}
 
-	protected List<QueryLiteral> convertToQueryLiteraCollection(final FunctionOperand operand,
-			final Collection<Issue> issues) {
-		List<QueryLiteral> result = new ArrayList<QueryLiteral>(issues.size());
-		for (Issue issue : issues) {
-			result.add(new QueryLiteral(operand, issue.getKey()));
+	/**
+	 * Runs the subquery, collecting only the ids of the issues it matches: filters
+	 * matching tens of thousands of issues would otherwise load every one of them.
+	 */
+	protected IssueIdList findIssueIds(QueryCreationContext qcc, Query subquery) {
+		IssueIdCollector collector = new IssueIdCollector();
+		searchSubquery(qcc, subquery, collector);
+		return collector.getIssueIds();
+	}
+
+	protected void searchSubquery(QueryCreationContext qcc, Query subquery, IssueIdCollector collector) {
+		try {
+			searchProvider.search(subquery, qcc.getUser(), collector);
+		} catch (Exception ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Adds the ids of the issues matching a Lucene query that the user may see.
+	 */
+	protected void searchIssueIds(User user, org.apache.lucene.search.Query luceneQuery, IssueIdList result) {
+		try {
+			searchProvider.search(new QueryImpl(), user, new IssueIdCollector(result), luceneQuery);
+		} catch (Exception ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Drops the issues the user may not see, issue security levels included, by
+	 * looking their ids up in the index in chunks of as many as a query may hold.
+	 */
+	protected IssueIdList retainVisible(User user, IssueIdList issueIds) {
+		IssueIdList result = new DistinctIssueIdList(issueIds.size());
+		int chunkSize = BooleanQuery.getMaxClauseCount();
+		for (int start = 0; start < issueIds.size(); start += chunkSize) {
+			BooleanQuery ids = new BooleanQuery();
+			for (int i = start; i < Math.min(issueIds.size(), start + chunkSize); i++) {
+				ids.add(new TermQuery(new Term(DocumentConstants.ISSUE_ID, String.valueOf(issueIds.get(i)))),
+						BooleanClause.Occur.SHOULD);
+			}
+			searchIssueIds(user, ids, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Emits issue id literals, which the query builder uses as they are; keys would
+	 * have to be resolved to ids again. JIRA turns them into one term per issue and
+	 * reports a result over jira.search.maxclauses itself.
+	 */
+	protected List<QueryLiteral> convertToQueryLiterals(final FunctionOperand operand, final long[] issueIds) {
+		List<QueryLiteral> result = new ArrayList<QueryLiteral>(issueIds.length);
+		for (long issueId : issueIds) {
+			result.add(new QueryLiteral(operand, issueId));
 		}
 		return result;
 	}
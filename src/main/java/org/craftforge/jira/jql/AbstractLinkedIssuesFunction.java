@@ -17,15 +17,18 @@ package org.craftforge.jira.jql;
 
 import com.atlassian.crowd.embedded.api.User;
 import com.atlassian.jira.ComponentManager;
-import com.atlassian.jira.issue.Issue;
-import com.atlassian.jira.issue.link.IssueLinkManager;
-import com.atlassian.jira.issue.link.LinkCollection;
-import com.atlassian.jira.jql.operand.QueryLiteral;
+import com.atlassian.jira.issue.link.IssueLinkTypeManager;
+import com.atlassian.jira.ofbiz.OfBizDelegator;
+import com.atlassian.jira.project.ProjectManager;
 import com.atlassian.jira.jql.query.QueryCreationContext;
 import com.atlassian.jira.plugin.jql.function.JqlFunctionModuleDescriptor;
-import com.atlassian.query.clause.TerminalClause;
+import com.atlassian.query.Query;
 import com.atlassian.query.operand.FunctionOperand;
 import java.util.*;
+import org.craftforge.jira.jql.ids.DistinctIssueIdList;
+import org.craftforge.jira.jql.ids.IssueIdList;
+import org.craftforge.jira.jql.linkedissues.BulkIssueLinkLoader;
+import org.craftforge.jira.jql.linkedissues.LinkGraphIndex;
 import org.craftforge.jira.jql.linkedissues.collectors.InwardLinkedIssueCollector;
 import org.craftforge.jira.jql.linkedissues.collectors.LinkedIssueCollector;
 import org.craftforge.jira.jql.linkedissues.collectors.NoSpecificLinkedIssueCollector;
@@ -37,8 +40,8 @@ import org.craftforge.jira.jql.linkedissues.collectors.OutwardLinkedIssueCollect
  */
 public abstract class AbstractLinkedIssuesFunction extends AbstractIssuesFromFilterFunction {
 
-	private IssueLinkManager issueLinkManager;
-	
+	private BulkIssueLinkLoader linkLoader;
+
 	private Collection<LinkedIssueCollector> collectors = new LinkedList<LinkedIssueCollector>();
 
 	public AbstractLinkedIssuesFunction() {
@@ -49,40 +52,47 @@ public abstract class AbstractLinkedIssuesFunction extends AbstractIssuesFromFil
 	
 	@Override
 	protected final void init(JqlFunctionModuleDescriptor moduleDescriptor, ComponentManager componentManager) {
-		issueLinkManager = componentManager.getIssueLinkManager();
+		LinkGraphIndex linkGraphIndex = LinkGraphIndex.getInstance();
+		linkGraphIndex.start();
+		linkLoader = new BulkIssueLinkLoader(ComponentManager.getComponentInstanceOfType(OfBizDelegator.class),
+				ComponentManager.getComponentInstanceOfType(IssueLinkTypeManager.class),
+				componentManager.getPermissionManager(),
+				ComponentManager.getComponentInstanceOfType(ProjectManager.class), linkGraphIndex);
 	}
 
 	public final int getMinimumNumberOfExpectedArguments() {
 		return 1;
 	}
 
-	public final List<QueryLiteral> getValues(QueryCreationContext qcc, FunctionOperand fo, TerminalClause tc) {
-		List<Issue> issues = findIssues(qcc, fo);
+	protected final IssueIdList findResultIds(QueryCreationContext qcc, FunctionOperand fo, Query subquery) {
+		IssueIdList issueIds = findIssueIds(qcc, subquery);
+		return findLinkedIssues(qcc.getUser(), issueIds, fo);
+	}
+
+	/**
+	 * Resolves the issues linked with those of the subquery, by the relation and
+	 * direction given as the second and third argument.
+	 */
+	protected IssueIdList findLinkedIssues(User user, IssueIdList issueIds, FunctionOperand fo) {
 		String relationNameOrNull = fetchParameter(fo, 1);
 		String relationDirectionOrNull = fetchParameter(fo, 2);
-		issues = fetchLinkedIssues(qcc.getUser(), issues, relationNameOrNull, relationDirectionOrNull);
-		return convertToQueryLiteraCollection(fo, issues);
+		return fetchLinkedIssues(user, issueIds, relationNameOrNull, relationDirectionOrNull);
 	}
 
-	
-	private String fetchParameter(FunctionOperand fo, int index) {
+	protected final String fetchParameter(FunctionOperand fo, int index) {
 		return fo.getArgs().size() > index ? fo.getArgs().get(index) : null;
 	}
 
-	private List<Issue> fetchLinkedIssues(User user, List<Issue> issues, String relation, String direction) {
-		List<Issue> result = new ArrayList<Issue>(issues.size());
-		for (Issue issue : issues) {
-			LinkCollection linkCollection = issueLinkManager.getLinkCollection(issue, user);
-			for (LinkedIssueCollector collector : collectors) {
-				Collection<Issue> collection = collector.collectIfNeeded(relation, direction,linkCollection);
-				result.addAll(nullSafeCollection(collection));
-			}
+	/**
+	 * Loads the links of all the source issues together, then checks the linked
+	 * issues' projects for browse permission once each.
+	 */
+	protected final IssueIdList fetchLinkedIssues(User user, IssueIdList issueIds, String relation, String direction) {
+		IssueIdList result = new DistinctIssueIdList(issueIds.size());
+		for (LinkedIssueCollector collector : collectors) {
+			collector.collectIfNeeded(relation, direction, linkLoader, issueIds, result);
 		}
-		return result;
-	}
-
-	private Collection<Issue> nullSafeCollection(Collection<Issue> issues) {
-		return issues == null ? Collections.<Issue>emptyList() : issues;
+		return linkLoader.retainBrowsable(user, result);
 	}
 	
 }
@@ -15,16 +15,15 @@
  */
 package org.craftforge.jira.jql;
 
-import com.atlassian.crowd.embedded.api.User;
 import com.atlassian.jira.ComponentManager;
-import com.atlassian.jira.issue.Issue;
-import com.atlassian.jira.jql.operand.QueryLiteral;
+import com.atlassian.jira.issue.index.DocumentConstants;
 import com.atlassian.jira.jql.query.QueryCreationContext;
 import com.atlassian.jira.plugin.jql.function.JqlFunctionModuleDescriptor;
-import com.atlassian.query.clause.TerminalClause;
+import com.atlassian.query.Query;
 import com.atlassian.query.operand.FunctionOperand;
-import java.util.ArrayList;
-import java.util.List;
+import org.craftforge.jira.jql.ids.DistinctIssueIdList;
+import org.craftforge.jira.jql.ids.IssueIdCollector;
+import org.craftforge.jira.jql.ids.IssueIdList;
 
 /**
  *
@@ -41,19 +40,17 @@ public abstract class AbstractParenIssuesFunction extends AbstractIssuesFromFilt
 		return 1;
 	}
 
-	public final List<QueryLiteral> getValues(QueryCreationContext qcc, FunctionOperand fo, TerminalClause tc) {
-		List<Issue> issues = findIssues(qcc, fo);
-		issues = fetchParents(qcc.getUser(), issues);
-		return convertToQueryLiteraCollection(fo, issues);
+	protected final IssueIdList findResultIds(QueryCreationContext qcc, FunctionOperand fo, Query subquery) {
+		return fetchParents(qcc, subquery);
 	}
 
-	private List<Issue> fetchParents(User user, List<Issue> issues) {
-		List<Issue> result = new ArrayList<Issue>();
-		for (Issue issue : issues) {
-			if (issue.isSubTask()) {
-				result.add(issue.getParentObject());
-			}
-		}
+	/**
+	 * Reads the parent ids of the subquery's subtasks from the index while
+	 * searching; issues that are not subtasks have none.
+	 */
+	private IssueIdList fetchParents(QueryCreationContext qcc, Query subquery) {
+		IssueIdList result = new DistinctIssueIdList();
+		searchSubquery(qcc, subquery, new IssueIdCollector(DocumentConstants.ISSUE_PARENTTASK, result));
 		return result;
 	}
 }
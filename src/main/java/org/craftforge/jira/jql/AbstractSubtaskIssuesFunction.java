@@ -17,14 +17,17 @@ package org.craftforge.jira.jql;
 
 import com.atlassian.crowd.embedded.api.User;
 import com.atlassian.jira.ComponentManager;
-import com.atlassian.jira.issue.Issue;
-import com.atlassian.jira.jql.operand.QueryLiteral;
+import com.atlassian.jira.issue.index.DocumentConstants;
 import com.atlassian.jira.jql.query.QueryCreationContext;
 import com.atlassian.jira.plugin.jql.function.JqlFunctionModuleDescriptor;
-import com.atlassian.query.clause.TerminalClause;
+import com.atlassian.query.Query;
 import com.atlassian.query.operand.FunctionOperand;
-import java.util.ArrayList;
-import java.util.List;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.craftforge.jira.jql.ids.DistinctIssueIdList;
+import org.craftforge.jira.jql.ids.IssueIdList;
 
 /**
  *
@@ -32,6 +35,11 @@ import java.util.List;
  */
 public abstract class AbstractSubtaskIssuesFunction extends AbstractIssuesFromFilterFunction {
 
+	/**
+	 * Parent ids per search.
+	 */
+	private static final int PARENTS_PER_SEARCH = 1000;
+
 	@Override
 	protected final void init(JqlFunctionModuleDescriptor moduleDescriptor, ComponentManager componentManager) {
 		// no op
@@ -41,16 +49,25 @@ public abstract class AbstractSubtaskIssuesFunction extends AbstractIssuesFromFi
 		return 1;
 	}
 
-	public final List<QueryLiteral> getValues(QueryCreationContext qcc, FunctionOperand fo, TerminalClause tc) {
-		List<Issue> issues = findIssues(qcc, fo);
-		issues = fetchSubtasks(qcc.getUser(), issues);
-		return convertToQueryLiteraCollection(fo, issues);
+	protected final IssueIdList findResultIds(QueryCreationContext qcc, FunctionOperand fo, Query subquery) {
+		IssueIdList issueIds = findIssueIds(qcc, subquery);
+		return fetchSubtasks(qcc.getUser(), issueIds);
 	}
 
-	private List<Issue> fetchSubtasks(User user, List<Issue> issues) {
-		List<Issue> result = new ArrayList<Issue>();
-		for (Issue issue : issues) {
-			result.addAll(issue.getSubTaskObjects());
+	/**
+	 * Finds the subtasks by their parent id field in the index, for up to
+	 * {@link #PARENTS_PER_SEARCH} parents per search.
+	 */
+	private IssueIdList fetchSubtasks(User user, IssueIdList issueIds) {
+		IssueIdList result = new DistinctIssueIdList();
+		int chunkSize = Math.min(PARENTS_PER_SEARCH, BooleanQuery.getMaxClauseCount());
+		for (int start = 0; start < issueIds.size(); start += chunkSize) {
+			BooleanQuery parents = new BooleanQuery();
+			for (int i = start; i < Math.min(issueIds.size(), start + chunkSize); i++) {
+				parents.add(new TermQuery(new Term(DocumentConstants.ISSUE_PARENTTASK, String.valueOf(issueIds.get(i)))),
+						BooleanClause.Occur.SHOULD);
+			}
+			searchIssueIds(user, parents, result);
 		}
 		return result;
 	}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Craftware Sp. z o.o..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.craftforge.jira.jql;
+
+import com.atlassian.sal.api.lifecycle.LifecycleAware;
+import org.craftforge.jira.jql.cache.FunctionResultCache;
+import org.craftforge.jira.jql.linkedissues.LinkGraphIndex;
+import org.craftforge.jira.jql.query.ParsedQueryCache;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Starts the structures the JQL functions share once JIRA is up, and stops them
+ * when the plugin is disabled or uninstalled, so that nothing of the plugin stays
+ * registered with JIRA's event publisher after its classes are gone.
+ *
+ * @author pbojko
+ */
+public class JqlFunctionsLifecycle implements LifecycleAware, DisposableBean {
+
+	public void onStart() {
+		FunctionResultCache.getInstance().start();
+		LinkGraphIndex.getInstance().start();
+	}
+
+	public void destroy() {
+		FunctionResultCache.getInstance().stop();
+		LinkGraphIndex.getInstance().stop();
+		ParsedQueryCache.getInstance().stop();
+	}
+}
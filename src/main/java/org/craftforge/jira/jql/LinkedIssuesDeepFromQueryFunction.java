@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012 Craftware Sp. z o.o..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.craftforge.jira.jql;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.jira.ComponentManager;
+import com.atlassian.jira.plugin.jql.function.JqlFunctionModuleDescriptor;
+import com.atlassian.jira.util.MessageSet;
+import com.atlassian.query.clause.TerminalClause;
+import com.atlassian.query.operand.FunctionOperand;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.apache.lucene.search.BooleanQuery;
+import org.craftforge.jira.jql.ids.IssueIdBitmap;
+import org.craftforge.jira.jql.ids.DistinctIssueIdList;
+import org.craftforge.jira.jql.ids.IssueIdList;
+import org.craftforge.jira.jql.query.QueryFromJQLStringProvider;
+import org.craftforge.jira.jql.query.QueryProvider;
+
+/**
+ * Returns the issues reachable from those of a subquery by following links up to a
+ * given depth, e.g. linkedIssuesDeepFromQuery("project = ABC", "Blocks", "Outward", 3).
+ * An empty relation or direction stands for any. Each level of the search loads the
+ * links of all its issues together, and no issue is expanded or returned twice.
+ * <p>
+ * The issues of each level are checked against the index for the user, so the
+ * search never goes through an issue the user may not see, whether because of its
+ * project or its security level. It stops, logging a warning, once it has found as
+ * many issues as a JIRA query may hold (jira.search.maxclauses).
+ *
+ * @author pbojko
+ */
+public class LinkedIssuesDeepFromQueryFunction extends AbstractLinkedIssuesFunction {
+
+	private static final Logger log = Logger.getLogger(LinkedIssuesDeepFromQueryFunction.class);
+
+	static final int DEFAULT_DEPTH = 3;
+
+	static final int MAX_DEPTH = 10;
+
+	@Override
+	protected QueryProvider createQueryProvider(JqlFunctionModuleDescriptor moduleDescriptor, ComponentManager componentManager) {
+		return new QueryFromJQLStringProvider();
+	}
+
+	@Override
+	public String getFunctionName() {
+		return "linkedIssuesDeepFromQuery";
+	}
+
+	@Override
+	public MessageSet validate(User user, FunctionOperand operand, TerminalClause tc) {
+		MessageSet messages = super.validate(user, operand, tc);
+		List<String> args = operand.getArgs();
+		if (args.size() > 3 && parseDepth(args.get(3)) < 0) {
+			messages.addErrorMessage(getI18nHelper().getText("linked-issues-deep-from-query.bad.depth", operand.getName(),
+					String.valueOf(MAX_DEPTH)));
+		}
+		return messages;
+	}
+
+	@Override
+	protected IssueIdList findLinkedIssues(User user, IssueIdList issueIds, FunctionOperand fo) {
+		String relation = emptyToNull(fetchParameter(fo, 1));
+		String direction = emptyToNull(fetchParameter(fo, 2));
+		String depthArg = fetchParameter(fo, 3);
+		int depth = depthArg == null ? DEFAULT_DEPTH : parseDepth(depthArg);
+		if (depth < 0) {
+			depth = DEFAULT_DEPTH;
+		}
+		IssueIdBitmap expanded = new IssueIdBitmap();
+		IssueIdList frontier = new IssueIdList(issueIds.size());
+		for (int i = 0; i < issueIds.size(); i++) {
+			if (expanded.add(issueIds.get(i))) {
+				frontier.add(issueIds.get(i));
+			}
+		}
+		// JIRA cannot run a query with more issues than this, so there is no point finding them.
+		int maxVisited = BooleanQuery.getMaxClauseCount();
+		IssueIdList result = new DistinctIssueIdList();
+		for (int level = 0; level < depth && !frontier.isEmpty(); level++) {
+			IssueIdList linked = retainVisible(user, fetchLinkedIssues(user, frontier, relation, direction));
+			IssueIdList next = new IssueIdList();
+			for (int i = 0; i < linked.size(); i++) {
+				long id = linked.get(i);
+				result.add(id);
+				if (result.size() >= maxVisited) {
+					log.warn(getFunctionName() + " stopped at level " + (level + 1) + " of " + depth + " after finding "
+							+ maxVisited + " issues, the most a query may hold (jira.search.maxclauses); "
+							+ "the result is incomplete");
+					return result;
+				}
+				if (expanded.add(id)) {
+					next.add(id);
+				}
+			}
+			frontier = next;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the depth, or -1 if it is not a number from 1 to {@link #MAX_DEPTH}
+	 */
+	private static int parseDepth(String depth) {
+		try {
+			int value = Integer.parseInt(depth.trim());
+			return value >= 1 && value <= MAX_DEPTH ? value : -1;
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	private static String emptyToNull(String value) {
+		return value == null || value.trim().isEmpty() ? null : value;
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2012 Craftware Sp. z o.o..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.craftforge.jira.jql.cache;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.jira.ComponentManager;
+import com.atlassian.jira.event.issue.IssueEvent;
+import com.atlassian.jira.event.issue.link.IssueLinkCreatedEvent;
+import com.atlassian.jira.event.issue.link.IssueLinkDeletedEvent;
+import com.atlassian.jira.ext.jabbernotifier.metrics.Metrics;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Results of the JQL functions, shared by all of them, so that dashboards
+ * evaluating the same function over and over search only once.
+ * <p>
+ * Entries are keyed by function, arguments, the subquery they resolved to and the
+ * user, and hold the issue ids. Any issue or issue link event makes all
+ * entries stale; a changed filter resolves to a different subquery, so it misses
+ * by itself. Entries also expire after {@link #MAX_AGE_MILLIS}, which bounds how
+ * long a permission change can go unnoticed. The least recently used entries are
+ * evicted beyond {@link #MAX_ENTRIES} entries or {@link #MAX_IDS} ids in all.
+ * <p>
+ * Hits, misses, evictions and invalidations are published as the
+ * "jqlFunctionCache" metrics. {@link #stop()} empties the cache when the plugin
+ * is disabled.
+ *
+ * @author pbojko
+ */
+public class FunctionResultCache {
+
+	private static final Logger log = Logger.getLogger(FunctionResultCache.class);
+
+	private static final FunctionResultCache INSTANCE = new FunctionResultCache();
+
+	static final int MAX_ENTRIES = 1000;
+
+	/**
+	 * Ids held in all entries together, 8 bytes each.
+	 */
+	static final int MAX_IDS = 1000000;
+
+	static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	static final String METRICS_NAME = "jqlFunctionCache";
+
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	// guarded by this
+	private EventPublisher eventPublisher;
+
+	// guarded by this
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+	// guarded by this
+	private long idCount;
+
+	private final AtomicLong hits;
+
+	private final AtomicLong misses;
+
+	private final AtomicLong evictions;
+
+	private final AtomicLong invalidations;
+
+	private final AtomicLong entryCount;
+
+	private final AtomicLong ids;
+
+	FunctionResultCache() {
+		Metrics metrics = Metrics.forComponent(METRICS_NAME);
+		hits = metrics.counter("hits");
+		misses = metrics.counter("misses");
+		evictions = metrics.counter("evictions");
+		invalidations = metrics.counter("invalidations");
+		entryCount = metrics.counter("entries");
+		ids = metrics.counter("ids");
+	}
+
+	public static FunctionResultCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Subscribes to the events that invalidate results. Only the first call after
+	 * construction or {@link #stop()} does anything; until then nothing is cached.
+	 */
+	public synchronized void start() {
+		if (started.get()) {
+			return;
+		}
+		EventPublisher publisher = ComponentManager.getComponentInstanceOfType(EventPublisher.class);
+		if (publisher == null) {
+			log.warn("No event publisher; JQL function results will not be cached");
+			return;
+		}
+		publisher.register(this);
+		eventPublisher = publisher;
+		started.set(true);
+	}
+
+	/**
+	 * Unsubscribes from events and drops every entry, so that a disabled plugin
+	 * leaves nothing behind. Nothing is cached until the cache is started again.
+	 */
+	public synchronized void stop() {
+		if (!started.compareAndSet(true, false)) {
+			return;
+		}
+		eventPublisher.unregister(this);
+		eventPublisher = null;
+		entries.clear();
+		idCount = 0;
+		updateSize();
+		Metrics.release(METRICS_NAME);
+	}
+
+	/**
+	 * @return value to pass to {@link #put} for a result computed from now on
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * @return the cached ids; null if there are none or they are stale
+	 */
+	public synchronized long[] get(Key key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		if (entry.generation != generation.get()
+				|| System.currentTimeMillis() - entry.createdMillis > MAX_AGE_MILLIS) {
+			remove(key, entry);
+			invalidations.incrementAndGet();
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.ids;
+	}
+
+	/**
+	 * @param generation the generation read before the result was computed; a
+	 * result that may have missed a change is not kept
+	 * @param issueIds the ids, which must not be changed afterwards
+	 */
+	public synchronized void put(Key key, long generation, long[] issueIds) {
+		if (!started.get() || generation != this.generation.get() || issueIds.length > MAX_IDS) {
+			return;
+		}
+		Entry previous = entries.put(key, new Entry(generation, issueIds));
+		if (previous != null) {
+			idCount -= previous.ids.length;
+		}
+		idCount += issueIds.length;
+		Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+		while (entries.size() > MAX_ENTRIES || idCount > MAX_IDS) {
+			Entry evicted = eldest.next().getValue();
+			eldest.remove();
+			idCount -= evicted.ids.length;
+			evictions.incrementAndGet();
+		}
+		updateSize();
+	}
+
+	@EventListener
+	public void onIssueEvent(IssueEvent event) {
+		invalidate();
+	}
+
+	@EventListener
+	public void onIssueLinkCreated(IssueLinkCreatedEvent event) {
+		invalidate();
+	}
+
+	@EventListener
+	public void onIssueLinkDeleted(IssueLinkDeletedEvent event) {
+		invalidate();
+	}
+
+	/**
+	 * Makes all entries stale; they are dropped as they are looked up or evicted.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+	}
+
+	private void remove(Key key, Entry entry) {
+		entries.remove(key);
+		idCount -= entry.ids.length;
+		updateSize();
+	}
+
+	private void updateSize() {
+		entryCount.set(entries.size());
+		ids.set(idCount);
+	}
+
+	private static final class Entry {
+
+		private final long generation;
+
+		private final long createdMillis = System.currentTimeMillis();
+
+		private final long[] ids;
+
+		Entry(long generation, long[] ids) {
+			this.generation = generation;
+			this.ids = ids;
+		}
+	}
+
+	/**
+	 * What a function result depends on: the function and its arguments, the
+	 * subquery they resolved to, and whose permissions it was searched with.
+	 */
+	public static final class Key {
+
+		private final String functionName;
+
+		private final List<String> args;
+
+		private final String subquery;
+
+		private final String userName;
+
+		private final boolean securityOverriden;
+
+		private final int hashCode;
+
+		public Key(String functionName, List<String> args, String subquery, User user, boolean securityOverriden) {
+			this.functionName = functionName;
+			this.args = new ArrayList<String>(args);
+			this.subquery = subquery;
+			this.userName = user == null ? null : user.getName();
+			this.securityOverriden = securityOverriden;
+			int hash = functionName.hashCode();
+			hash = 31 * hash + this.args.hashCode();
+			hash = 31 * hash + (subquery == null ? 0 : subquery.hashCode());
+			hash = 31 * hash + (userName == null ? 0 : userName.hashCode());
+			this.hashCode = 31 * hash + (securityOverriden ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hashCode == other.hashCode && securityOverriden == other.securityOverriden
+					&& functionName.equals(other.functionName) && args.equals(other.args)
+					&& (subquery == null ? other.subquery == null : subquery.equals(other.subquery))
+					&& (userName == null ? other.userName == null : userName.equals(other.userName));
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public String toString() {
+			return functionName + args + " for " + userName;
+		}
+	}
+}
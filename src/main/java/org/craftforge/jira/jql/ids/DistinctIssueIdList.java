@@ -0,0 +1,46 @@
+/*
+ * Copyright 2012 Craftware Sp. z o.o..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.craftforge.jira.jql.ids;
+
+/**
+ * Issue id list that ignores ids it already holds, so that an issue reached
+ * many times (a parent through each of its subtasks, say) is returned once.
+ *
+ * @author pbojko
+ */
+public class DistinctIssueIdList extends IssueIdList {
+
+	private final IssueIdBitmap seen = new IssueIdBitmap();
+
+	public DistinctIssueIdList() {
+		super();
+	}
+
+	public DistinctIssueIdList(int capacity) {
+		super(capacity);
+	}
+
+	@Override
+	public void add(long id) {
+		if (seen.add(id)) {
+			super.add(id);
+		}
+	}
+
+	public boolean contains(long id) {
+		return seen.contains(id);
+	}
+}
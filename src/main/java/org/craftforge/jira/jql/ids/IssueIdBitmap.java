@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 Craftware Sp. z o.o..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.craftforge.jira.jql.ids;
+
+import java.util.Arrays;
+
+/**
+ * Set of issue ids kept as a bitmap. Issue ids are handed out in sequence, so
+ * the bitmap is split into pages of 65536 ids that are only allocated once an id
+ * in their range is added: 8 KB per page touched.
+ *
+ * @author pbojko
+ */
+public class IssueIdBitmap {
+
+	private static final int PAGE_BITS = 16;
+
+	private static final int WORDS_PER_PAGE = (1 << PAGE_BITS) / 64;
+
+	private long[][] pages = new long[0][];
+
+	private int size;
+
+	/**
+	 * @return whether the id was not in the set yet
+	 */
+	public boolean add(long id) {
+		int page = page(id);
+		if (page >= pages.length) {
+			pages = Arrays.copyOf(pages, Math.max(page + 1, pages.length + (pages.length >> 1)));
+		}
+		if (pages[page] == null) {
+			pages[page] = new long[WORDS_PER_PAGE];
+		}
+		int bit = (int) id & ((1 << PAGE_BITS) - 1);
+		long mask = 1L << bit;
+		long word = pages[page][bit >>> 6];
+		if ((word & mask) != 0) {
+			return false;
+		}
+		pages[page][bit >>> 6] = word | mask;
+		size++;
+		return true;
+	}
+
+	public boolean contains(long id) {
+		int page = page(id);
+		if (page >= pages.length || pages[page] == null) {
+			return false;
+		}
+		int bit = (int) id & ((1 << PAGE_BITS) - 1);
+		return (pages[page][bit >>> 6] & (1L << bit)) != 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private static int page(long id) {
+		if (id < 0 || (id >>> PAGE_BITS) > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Issue id out of range: " + id);
+		}
+		return (int) (id >>> PAGE_BITS);
+	}
+
+	@Override
+	public String toString() {
+		return "IssueIdBitmap[" + size + "]";
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 Craftware Sp. z o.o..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.craftforge.jira.jql.ids;
+
+import com.atlassian.jira.issue.index.DocumentConstants;
+import java.io.IOException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Collects the ids of matching issues straight from the index, without loading
+ * the issues. The ids are read from the field cache of each index segment, which
+ * Lucene keeps between searches. Another id field, such as the parent id of
+ * subtasks, can be collected instead; hits without it are skipped.
+ *
+ * @author pbojko
+ */
+public class IssueIdCollector extends Collector {
+
+	private final String field;
+
+	private final IssueIdList ids;
+
+	private String[] segmentIds;
+
+	public IssueIdCollector() {
+		this(new IssueIdList());
+	}
+
+	/**
+	 * @param ids list the ids are added to
+	 */
+	public IssueIdCollector(IssueIdList ids) {
+		this(DocumentConstants.ISSUE_ID, ids);
+	}
+
+	/**
+	 * @param field indexed field holding the ids to collect
+	 * @param ids list the ids are added to
+	 */
+	public IssueIdCollector(String field, IssueIdList ids) {
+		this.field = field;
+		this.ids = ids;
+	}
+
+	@Override
+	public void setScorer(Scorer scorer) {
+		// hits are not scored
+	}
+
+	@Override
+	public void setNextReader(IndexReader reader, int docBase) throws IOException {
+		segmentIds = FieldCache.DEFAULT.getStrings(reader, field);
+	}
+
+	@Override
+	public void collect(int doc) {
+		String id = segmentIds[doc];
+		if (id != null) {
+			ids.add(Long.parseLong(id));
+		}
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return true;
+	}
+
+	public IssueIdList getIssueIds() {
+		return ids;
+	}
+}
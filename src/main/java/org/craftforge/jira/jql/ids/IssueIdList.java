@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 Craftware Sp. z o.o..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.craftforge.jira.jql.ids;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of issue ids kept in a primitive array, 8 bytes per id.
+ *
+ * @author pbojko
+ */
+public class IssueIdList {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private long[] ids;
+
+	private int size;
+
+	public IssueIdList() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public IssueIdList(int capacity) {
+		ids = new long[Math.max(1, capacity)];
+	}
+
+	public void add(long id) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, ids.length + (ids.length >> 1) + 1);
+		}
+		ids[size++] = id;
+	}
+
+	public void addAll(IssueIdList other) {
+		for (int i = 0; i < other.size; i++) {
+			add(other.ids[i]);
+		}
+	}
+
+	public long get(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException(index + " >= " + size);
+		}
+		return ids[index];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long[] toArray() {
+		return Arrays.copyOf(ids, size);
+	}
+
+	@Override
+	public String toString() {
+		return "IssueIdList[" + size + "]";
+	}
+}
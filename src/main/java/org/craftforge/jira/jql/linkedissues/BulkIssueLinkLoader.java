@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 Craftware Sp. z o.o..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.craftforge.jira.jql.linkedissues;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.jira.issue.link.IssueLinkType;
+import com.atlassian.jira.issue.link.IssueLinkTypeManager;
+import com.atlassian.jira.ofbiz.OfBizDelegator;
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.project.ProjectManager;
+import com.atlassian.jira.security.PermissionManager;
+import com.atlassian.jira.security.Permissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.craftforge.jira.jql.ids.IssueIdList;
+import org.ofbiz.core.entity.EntityCondition;
+import org.ofbiz.core.entity.EntityConditionList;
+import org.ofbiz.core.entity.EntityExpr;
+import org.ofbiz.core.entity.EntityOperator;
+import org.ofbiz.core.entity.GenericValue;
+
+/**
+ * Loads the links of many issues at once, from the {@link LinkGraphIndex} once it is
+ * built and straight from the issue link table until then. Source ids are sent in
+ * chunks of IN conditions, so resolving the links of ten thousand issues takes a few
+ * dozen queries rather than ten thousand link collections.
+ *
+ * @author pbojko
+ */
+public class BulkIssueLinkLoader {
+
+	/**
+	 * Ids per IN condition; kept well below the 1000 Oracle allows.
+	 */
+	static final int CHUNK_SIZE = 500;
+
+	private static final String ISSUE_LINK_ENTITY = "IssueLink";
+
+	private static final String ISSUE_ENTITY = "Issue";
+
+	private final OfBizDelegator ofBizDelegator;
+
+	private final IssueLinkTypeManager issueLinkTypeManager;
+
+	private final PermissionManager permissionManager;
+
+	private final ProjectManager projectManager;
+
+	private final LinkGraphIndex linkGraphIndex;
+
+	public BulkIssueLinkLoader(OfBizDelegator ofBizDelegator, IssueLinkTypeManager issueLinkTypeManager,
+			PermissionManager permissionManager, ProjectManager projectManager, LinkGraphIndex linkGraphIndex) {
+		this.ofBizDelegator = ofBizDelegator;
+		this.linkGraphIndex = linkGraphIndex;
+		this.issueLinkTypeManager = issueLinkTypeManager;
+		this.permissionManager = permissionManager;
+		this.projectManager = projectManager;
+	}
+
+	/**
+	 * @param relation link type name, or null for all types
+	 * @return ids of the matching link types, leaving out system types (such as the
+	 * subtask link) as issue link collections do
+	 */
+	public List<Long> findLinkTypeIds(String relation) {
+		Collection<IssueLinkType> types = relation == null ? issueLinkTypeManager.getIssueLinkTypes()
+				: issueLinkTypeManager.getIssueLinkTypesByName(relation);
+		List<Long> result = new ArrayList<Long>();
+		if (types != null) {
+			for (IssueLinkType type : types) {
+				if (!type.isSystemLinkType()) {
+					result.add(type.getId());
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the issues at the other end of the links of the given types.
+	 *
+	 * @param inward whether to follow the links pointing at the source issues rather
+	 * than the ones going out of them
+	 */
+	public void loadLinkedIssueIds(IssueIdList sourceIds, List<Long> linkTypeIds, boolean inward, IssueIdList result) {
+		if (sourceIds.isEmpty() || linkTypeIds.isEmpty()) {
+			return;
+		}
+		if (linkGraphIndex != null && linkGraphIndex.collect(sourceIds, linkTypeIds, inward, result)) {
+			return;
+		}
+		String fromField = inward ? "destination" : "source";
+		String toField = inward ? "source" : "destination";
+		EntityExpr typeCondition = new EntityExpr("linktype", EntityOperator.IN, linkTypeIds);
+		List<String> fields = Arrays.asList(toField);
+		for (int start = 0; start < sourceIds.size(); start += CHUNK_SIZE) {
+			EntityCondition condition = new EntityConditionList(Arrays.asList(
+					new EntityExpr(fromField, EntityOperator.IN, chunk(sourceIds, start)), typeCondition), EntityOperator.AND);
+			for (GenericValue link : ofBizDelegator.findByCondition(ISSUE_LINK_ENTITY, condition, fields)) {
+				result.add(link.getLong(toField));
+			}
+		}
+	}
+
+	/**
+	 * Drops the issues in projects the user may not browse. Issues are looked up in
+	 * chunks for their project, and each project is checked once.
+	 */
+	public IssueIdList retainBrowsable(User user, IssueIdList issueIds) {
+		Map<Long, Boolean> browsableProjects = new HashMap<Long, Boolean>();
+		IssueIdList result = new IssueIdList(issueIds.size());
+		List<String> fields = Arrays.asList("id", "project");
+		for (int start = 0; start < issueIds.size(); start += CHUNK_SIZE) {
+			List<Long> chunk = chunk(issueIds, start);
+			Map<Long, Long> projectIds = new HashMap<Long, Long>(chunk.size() * 2);
+			EntityCondition condition = new EntityExpr("id", EntityOperator.IN, chunk);
+			for (GenericValue issue : ofBizDelegator.findByCondition(ISSUE_ENTITY, condition, fields)) {
+				projectIds.put(issue.getLong("id"), issue.getLong("project"));
+			}
+			for (Long issueId : chunk) {
+				Long projectId = projectIds.get(issueId);
+				if (projectId != null && isBrowsable(user, projectId, browsableProjects)) {
+					result.add(issueId);
+				}
+			}
+		}
+		return result;
+	}
+
+	private boolean isBrowsable(User user, Long projectId, Map<Long, Boolean> browsableProjects) {
+		Boolean browsable = browsableProjects.get(projectId);
+		if (browsable == null) {
+			Project project = projectManager.getProjectObj(projectId);
+			browsable = project != null && permissionManager.hasPermission(Permissions.BROWSE, project, user);
+			browsableProjects.put(projectId, browsable);
+		}
+		return browsable;
+	}
+
+	private static List<Long> chunk(IssueIdList ids, int start) {
+		int end = Math.min(ids.size(), start + CHUNK_SIZE);
+		List<Long> chunk = new ArrayList<Long>(end - start);
+		for (int i = start; i < end; i++) {
+			chunk.add(ids.get(i));
+		}
+		return chunk;
+	}
+}
@@ -0,0 +1,583 @@
+/*
+ * Copyright 2012 Craftware Sp. z o.o..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.craftforge.jira.jql.linkedissues;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.jira.ComponentManager;
+import com.atlassian.jira.event.issue.link.IssueLinkCreatedEvent;
+import com.atlassian.jira.event.issue.link.IssueLinkDeletedEvent;
+import com.atlassian.jira.ext.jabbernotifier.metrics.LatencyHistogram;
+import com.atlassian.jira.ext.jabbernotifier.metrics.Metrics;
+import com.atlassian.jira.issue.link.IssueLink;
+import com.atlassian.jira.ofbiz.OfBizDelegator;
+import com.atlassian.jira.ofbiz.OfBizListIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.log4j.Logger;
+import org.craftforge.jira.jql.ids.IssueIdList;
+import org.ofbiz.core.entity.GenericValue;
+
+/**
+ * All issue links held in memory, so the link functions can follow links without
+ * going to the database. Links are kept per link type and direction in compressed
+ * adjacency form: a sorted array of issue ids, an array of offsets into a single
+ * array of neighbour ids, 20 to 28 bytes per link.
+ * <p>
+ * The index is built in the background when the plugin starts, and then follows
+ * the issue link created and deleted events. Changes are kept aside and merged into
+ * the arrays once enough of them have piled up. Until the index is built,
+ * {@link #collect} declines and links are read from the database. It is rebuilt
+ * every {@link #REBUILD_INTERVAL_HOURS} hours, which also picks up links changed
+ * without an event, e.g. by a project import. {@link #stop()} drops it when the
+ * plugin is disabled.
+ * <p>
+ * The build time and the estimated heap size are published as the
+ * "linkGraphIndex" metrics and logged after every build.
+ *
+ * @author pbojko
+ */
+public class LinkGraphIndex {
+
+	private static final Logger log = Logger.getLogger(LinkGraphIndex.class);
+
+	private static final LinkGraphIndex INSTANCE = new LinkGraphIndex();
+
+	/**
+	 * Pending changes of a link type that cause it to be compacted.
+	 */
+	private static final int COMPACT_THRESHOLD = 4096;
+
+	/**
+	 * Rough heap cost of a pending change: boxed ids and hash set entries.
+	 */
+	private static final int PENDING_CHANGE_BYTES = 160;
+
+	static final long REBUILD_INTERVAL_HOURS = 24;
+
+	static final String METRICS_NAME = "linkGraphIndex";
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// guarded by this
+	private boolean started;
+
+	// guarded by this
+	private EventPublisher eventPublisher;
+
+	// guarded by this
+	private ScheduledExecutorService scheduler;
+
+	// guarded by lock
+	private Map<Long, LinkTypeGraph> graphs;
+
+	// guarded by lock; changes seen while a build is reading the link table
+	private List<long[]> changesDuringBuild;
+
+	private final AtomicLong links;
+
+	private final AtomicLong heapBytes;
+
+	private final AtomicLong builds;
+
+	private final AtomicLong compactions;
+
+	private final LatencyHistogram buildTimer;
+
+	LinkGraphIndex() {
+		Metrics metrics = Metrics.forComponent(METRICS_NAME);
+		links = metrics.counter("links");
+		heapBytes = metrics.counter("heapBytes");
+		builds = metrics.counter("builds");
+		compactions = metrics.counter("compactions");
+		buildTimer = metrics.timer("build");
+	}
+
+	public static LinkGraphIndex getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Subscribes to link events and builds the index on a background thread, then
+	 * rebuilds it periodically. Only the first call after construction or
+	 * {@link #stop()} does anything.
+	 */
+	public synchronized void start() {
+		if (started) {
+			return;
+		}
+		started = true;
+		EventPublisher publisher = ComponentManager.getComponentInstanceOfType(EventPublisher.class);
+		final OfBizDelegator ofBizDelegator = ComponentManager.getComponentInstanceOfType(OfBizDelegator.class);
+		if (publisher == null || ofBizDelegator == null) {
+			log.warn("Issue link index not available; links will be read from the database");
+			return;
+		}
+		// subscribe first, so that no change made during the build is missed
+		publisher.register(this);
+		eventPublisher = publisher;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jql-link-graph-index-build");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				rebuild(ofBizDelegator);
+			}
+		}, 0, REBUILD_INTERVAL_HOURS, TimeUnit.HOURS);
+	}
+
+	/**
+	 * Unsubscribes from link events, stops the rebuilds and drops the index, so
+	 * that a disabled plugin leaves nothing behind. Links are read from the
+	 * database until the index is started again.
+	 */
+	public synchronized void stop() {
+		if (!started) {
+			return;
+		}
+		started = false;
+		if (eventPublisher != null) {
+			eventPublisher.unregister(this);
+			eventPublisher = null;
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		lock.writeLock().lock();
+		try {
+			// a build still reading the link table sees this and throws its result away
+			changesDuringBuild = null;
+			graphs = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		updateSize();
+		Metrics.release(METRICS_NAME);
+	}
+
+	/**
+	 * Reads the whole issue link table and replaces the index with it. The old
+	 * index, if any, keeps answering until then.
+	 */
+	private void rebuild(OfBizDelegator ofBizDelegator) {
+		List<long[]> changes = new ArrayList<long[]>();
+		lock.writeLock().lock();
+		try {
+			changesDuringBuild = changes;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		long start = LatencyHistogram.start();
+		Map<Long, LinkTypeGraph> built;
+		try {
+			built = load(ofBizDelegator);
+		} catch (RuntimeException ex) {
+			log.error("Could not build the issue link index; the previous one, if any, stays in use", ex);
+			lock.writeLock().lock();
+			try {
+				if (changesDuringBuild == changes) {
+					changesDuringBuild = null;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if (changesDuringBuild != changes) {
+				// stopped while building
+				return;
+			}
+			// links changed while the table was read may or may not be in it;
+			// applying the changes again is harmless
+			for (long[] change : changes) {
+				apply(built, change[0], change[1], change[2], change[3] != 0);
+			}
+			changesDuringBuild = null;
+			graphs = built;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		buildTimer.recordSince(start);
+		builds.incrementAndGet();
+		long millis = (System.nanoTime() - start) / 1000000;
+		updateSize();
+		log.info("Built the issue link index: " + links.get() + " links in " + built.size() + " link types, about "
+				+ heapBytes.get() / 1024 + " KB, in " + millis + " ms");
+	}
+
+	private static Map<Long, LinkTypeGraph> load(OfBizDelegator ofBizDelegator) {
+		Map<Long, IssueIdList[]> pairs = new HashMap<Long, IssueIdList[]>();
+		OfBizListIterator iterator = ofBizDelegator.findListIteratorByCondition("IssueLink", null, null,
+				Arrays.asList("source", "destination", "linktype"), null, null);
+		try {
+			GenericValue link;
+			while ((link = iterator.next()) != null) {
+				Long linkType = link.getLong("linktype");
+				IssueIdList[] sourcesAndDestinations = pairs.get(linkType);
+				if (sourcesAndDestinations == null) {
+					sourcesAndDestinations = new IssueIdList[] {new IssueIdList(), new IssueIdList()};
+					pairs.put(linkType, sourcesAndDestinations);
+				}
+				sourcesAndDestinations[0].add(link.getLong("source"));
+				sourcesAndDestinations[1].add(link.getLong("destination"));
+			}
+		} finally {
+			iterator.close();
+		}
+		Map<Long, LinkTypeGraph> result = new HashMap<Long, LinkTypeGraph>();
+		for (Map.Entry<Long, IssueIdList[]> entry : pairs.entrySet()) {
+			long[] sources = entry.getValue()[0].toArray();
+			long[] destinations = entry.getValue()[1].toArray();
+			// free the lists before building the next type
+			entry.setValue(null);
+			result.put(entry.getKey(), new LinkTypeGraph(sources, destinations));
+		}
+		return result;
+	}
+
+	public boolean isReady() {
+		lock.readLock().lock();
+		try {
+			return graphs != null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds the issues at the other end of the source issues' links of the given
+	 * types. Checking for the index and reading it happen under the same lock,
+	 * so a concurrent {@link #stop()} can't leave the caller with nothing.
+	 *
+	 * @param inward whether to follow the links pointing at the source issues
+	 * @return false, having added nothing, if the index is not built
+	 */
+	public boolean collect(IssueIdList sourceIds, List<Long> linkTypeIds, boolean inward, IssueIdList result) {
+		lock.readLock().lock();
+		try {
+			if (graphs == null) {
+				return false;
+			}
+			for (Long linkTypeId : linkTypeIds) {
+				LinkTypeGraph graph = graphs.get(linkTypeId);
+				if (graph != null) {
+					graph.collect(sourceIds, inward, result);
+				}
+			}
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@EventListener
+	public void onIssueLinkCreated(IssueLinkCreatedEvent event) {
+		change(event.getIssueLink(), true);
+	}
+
+	@EventListener
+	public void onIssueLinkDeleted(IssueLinkDeletedEvent event) {
+		change(event.getIssueLink(), false);
+	}
+
+	private void change(IssueLink link, boolean created) {
+		if (link == null || link.getLinkTypeId() == null) {
+			return;
+		}
+		long linkType = link.getLinkTypeId();
+		long source = link.getSourceId();
+		long destination = link.getDestinationId();
+		boolean compacted = false;
+		lock.writeLock().lock();
+		try {
+			if (changesDuringBuild != null) {
+				changesDuringBuild.add(new long[] {linkType, source, destination, created ? 1 : 0});
+			}
+			if (graphs != null) {
+				compacted = apply(graphs, linkType, source, destination, created);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (compacted) {
+			compactions.incrementAndGet();
+		}
+		updateSize();
+	}
+
+	/**
+	 * @return whether the link type was compacted
+	 */
+	private static boolean apply(Map<Long, LinkTypeGraph> graphs, long linkType, long source, long destination,
+			boolean created) {
+		LinkTypeGraph graph = graphs.get(linkType);
+		if (graph == null) {
+			graph = new LinkTypeGraph(new long[0], new long[0]);
+			graphs.put(linkType, graph);
+		}
+		if (created) {
+			graph.add(source, destination);
+		} else {
+			graph.remove(source, destination);
+		}
+		if (graph.pendingChanges() >= COMPACT_THRESHOLD) {
+			graph.compact();
+			return true;
+		}
+		return false;
+	}
+
+	private void updateSize() {
+		long linkCount = 0;
+		long bytes = 0;
+		lock.readLock().lock();
+		try {
+			if (graphs != null) {
+				for (LinkTypeGraph graph : graphs.values()) {
+					linkCount += graph.size();
+					bytes += graph.heapBytes();
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		links.set(linkCount);
+		heapBytes.set(bytes);
+	}
+
+	/**
+	 * Links of one type in both directions, with the changes not yet merged in.
+	 */
+	static final class LinkTypeGraph {
+
+		private Adjacency outward;
+
+		private Adjacency inward;
+
+		private final Map<Long, Set<Long>> addedOutward = new HashMap<Long, Set<Long>>();
+
+		private final Map<Long, Set<Long>> addedInward = new HashMap<Long, Set<Long>>();
+
+		private final Map<Long, Set<Long>> removedOutward = new HashMap<Long, Set<Long>>();
+
+		private final Map<Long, Set<Long>> removedInward = new HashMap<Long, Set<Long>>();
+
+		private int pendingChanges;
+
+		LinkTypeGraph(long[] sources, long[] destinations) {
+			outward = new Adjacency(sources, destinations);
+			inward = new Adjacency(destinations, sources);
+		}
+
+		/**
+		 * Changes are applied only once, so events seen twice do no harm.
+		 */
+		void add(long source, long destination) {
+			if (unmark(removedOutward, source, destination)) {
+				unmark(removedInward, destination, source);
+				pendingChanges--;
+			} else if (!outward.contains(source, destination) && mark(addedOutward, source, destination)) {
+				mark(addedInward, destination, source);
+				pendingChanges++;
+			}
+		}
+
+		void remove(long source, long destination) {
+			if (unmark(addedOutward, source, destination)) {
+				unmark(addedInward, destination, source);
+				pendingChanges--;
+			} else if (outward.contains(source, destination) && mark(removedOutward, source, destination)) {
+				mark(removedInward, destination, source);
+				pendingChanges++;
+			}
+		}
+
+		int pendingChanges() {
+			return pendingChanges;
+		}
+
+		void collect(IssueIdList sourceIds, boolean inwardLinks, IssueIdList result) {
+			Adjacency adjacency = inwardLinks ? inward : outward;
+			Map<Long, Set<Long>> added = inwardLinks ? addedInward : addedOutward;
+			Map<Long, Set<Long>> removed = inwardLinks ? removedInward : removedOutward;
+			for (int i = 0; i < sourceIds.size(); i++) {
+				long id = sourceIds.get(i);
+				adjacency.collect(id, removed.isEmpty() ? null : removed.get(id), result);
+				if (!added.isEmpty()) {
+					Set<Long> neighbours = added.get(id);
+					if (neighbours != null) {
+						for (Long neighbour : neighbours) {
+							result.add(neighbour);
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Merges the pending changes into the arrays.
+		 */
+		void compact() {
+			IssueIdList sources = new IssueIdList(outward.size() + pendingChanges);
+			IssueIdList destinations = new IssueIdList(outward.size() + pendingChanges);
+			outward.copyTo(removedOutward, sources, destinations);
+			for (Map.Entry<Long, Set<Long>> entry : addedOutward.entrySet()) {
+				for (Long destination : entry.getValue()) {
+					sources.add(entry.getKey());
+					destinations.add(destination);
+				}
+			}
+			long[] sourceArray = sources.toArray();
+			long[] destinationArray = destinations.toArray();
+			outward = new Adjacency(sourceArray, destinationArray);
+			inward = new Adjacency(destinationArray, sourceArray);
+			addedOutward.clear();
+			addedInward.clear();
+			removedOutward.clear();
+			removedInward.clear();
+			pendingChanges = 0;
+		}
+
+		int size() {
+			int added = 0;
+			for (Set<Long> neighbours : addedOutward.values()) {
+				added += neighbours.size();
+			}
+			return outward.size() + 2 * added - pendingChanges;
+		}
+
+		long heapBytes() {
+			return outward.heapBytes() + inward.heapBytes() + (long) pendingChanges * PENDING_CHANGE_BYTES;
+		}
+
+		private static boolean mark(Map<Long, Set<Long>> changes, long from, long to) {
+			Set<Long> neighbours = changes.get(from);
+			if (neighbours == null) {
+				neighbours = new HashSet<Long>();
+				changes.put(from, neighbours);
+			}
+			return neighbours.add(to);
+		}
+
+		private static boolean unmark(Map<Long, Set<Long>> changes, long from, long to) {
+			Set<Long> neighbours = changes.get(from);
+			if (neighbours == null || !neighbours.remove(to)) {
+				return false;
+			}
+			if (neighbours.isEmpty()) {
+				changes.remove(from);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Links in one direction: the neighbours of keys[i] are
+	 * neighbours[offsets[i]] up to neighbours[offsets[i + 1]], sorted.
+	 */
+	static final class Adjacency {
+
+		private final long[] keys;
+
+		private final int[] offsets;
+
+		private final long[] neighbours;
+
+		Adjacency(long[] from, long[] to) {
+			int count = from.length;
+			long[] sortedKeys = Arrays.copyOf(from, count);
+			Arrays.sort(sortedKeys);
+			int distinct = 0;
+			for (int i = 0; i < count; i++) {
+				if (i == 0 || sortedKeys[i] != sortedKeys[i - 1]) {
+					sortedKeys[distinct++] = sortedKeys[i];
+				}
+			}
+			keys = Arrays.copyOf(sortedKeys, distinct);
+			offsets = new int[distinct + 1];
+			for (int i = 0; i < count; i++) {
+				offsets[Arrays.binarySearch(keys, from[i]) + 1]++;
+			}
+			for (int i = 0; i < distinct; i++) {
+				offsets[i + 1] += offsets[i];
+			}
+			neighbours = new long[count];
+			int[] next = Arrays.copyOf(offsets, distinct);
+			for (int i = 0; i < count; i++) {
+				neighbours[next[Arrays.binarySearch(keys, from[i])]++] = to[i];
+			}
+			for (int i = 0; i < distinct; i++) {
+				Arrays.sort(neighbours, offsets[i], offsets[i + 1]);
+			}
+		}
+
+		boolean contains(long from, long to) {
+			int index = Arrays.binarySearch(keys, from);
+			return index >= 0 && Arrays.binarySearch(neighbours, offsets[index], offsets[index + 1], to) >= 0;
+		}
+
+		void collect(long from, Set<Long> removed, IssueIdList result) {
+			int index = Arrays.binarySearch(keys, from);
+			if (index < 0) {
+				return;
+			}
+			for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+				if (removed == null || !removed.contains(neighbours[i])) {
+					result.add(neighbours[i]);
+				}
+			}
+		}
+
+		void copyTo(Map<Long, Set<Long>> removed, IssueIdList from, IssueIdList to) {
+			for (int index = 0; index < keys.length; index++) {
+				Set<Long> removedNeighbours = removed.get(keys[index]);
+				for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+					if (removedNeighbours == null || !removedNeighbours.contains(neighbours[i])) {
+						from.add(keys[index]);
+						to.add(neighbours[i]);
+					}
+				}
+			}
+		}
+
+		int size() {
+			return neighbours.length;
+		}
+
+		long heapBytes() {
+			return 8L * keys.length + 4L * offsets.length + 8L * neighbours.length;
+		}
+	}
+}
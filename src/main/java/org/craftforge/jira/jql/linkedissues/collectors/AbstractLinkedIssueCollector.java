@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 Craftware Sp. z o.o..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.craftforge.jira.jql.linkedissues.collectors;
+
+import java.util.List;
+import org.craftforge.jira.jql.ids.IssueIdList;
+import org.craftforge.jira.jql.linkedissues.BulkIssueLinkLoader;
+
+/**
+ *
+ * @author pbojko
+ */
+public abstract class AbstractLinkedIssueCollector implements LinkedIssueCollector {
+
+	/**
+	 * Adds the issues at the other end of the links in one direction. The link types
+	 * are resolved first, so only links of the wanted types are read.
+	 *
+	 * @param relation link type name, or null for links of any type
+	 * @param inward whether to follow the links pointing at the source issues
+	 */
+	protected void collect(BulkIssueLinkLoader loader, IssueIdList sourceIds, String relation, boolean inward,
+			IssueIdList result) {
+		List<Long> linkTypeIds = loader.findLinkTypeIds(relation);
+		loader.loadLinkedIssueIds(sourceIds, linkTypeIds, inward, result);
+	}
+}
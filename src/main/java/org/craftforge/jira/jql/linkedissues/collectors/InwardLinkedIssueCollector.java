@@ -15,24 +15,21 @@
  */
 package org.craftforge.jira.jql.linkedissues.collectors;
 
-import com.atlassian.jira.issue.Issue;
-import com.atlassian.jira.issue.link.LinkCollection;
-import java.util.Collection;
-import java.util.Collections;
+import org.craftforge.jira.jql.ids.IssueIdList;
+import org.craftforge.jira.jql.linkedissues.BulkIssueLinkLoader;
 
 /**
  *
  * @author pbojko
  */
-public class InwardLinkedIssueCollector implements LinkedIssueCollector {
+public class InwardLinkedIssueCollector extends AbstractLinkedIssueCollector {
 
 	private static final String INWARD_DRIRECTION = "Inward";
 
-	public Collection<Issue> collectIfNeeded(String relation, String direction, LinkCollection linkCollection) {
+	public void collectIfNeeded(String relation, String direction, BulkIssueLinkLoader loader, IssueIdList sourceIds,
+			IssueIdList result) {
 		if (relation != null && !relation.isEmpty() && (direction == null || direction.equalsIgnoreCase(INWARD_DRIRECTION))) {
-			return linkCollection.getInwardIssues(relation);
-		} else {
-			return Collections.<Issue>emptyList();
+			collect(loader, sourceIds, relation, true, result);
 		}
 	}
 }
@@ -15,9 +15,8 @@
  */
 package org.craftforge.jira.jql.linkedissues.collectors;
 
-import com.atlassian.jira.issue.Issue;
-import com.atlassian.jira.issue.link.LinkCollection;
-import java.util.Collection;
+import org.craftforge.jira.jql.ids.IssueIdList;
+import org.craftforge.jira.jql.linkedissues.BulkIssueLinkLoader;
 
 /**
  *
@@ -25,6 +24,11 @@ import java.util.Collection;
  */
 public interface LinkedIssueCollector {
 	
-	Collection<Issue> collectIfNeeded(String relation, String direction, LinkCollection linkCollection);
+	/**
+	 * Adds the ids of the issues at the other end of the source issues' links that
+	 * match the relation and direction.
+	 */
+	void collectIfNeeded(String relation, String direction, BulkIssueLinkLoader loader, IssueIdList sourceIds,
+			IssueIdList result);
 
 }
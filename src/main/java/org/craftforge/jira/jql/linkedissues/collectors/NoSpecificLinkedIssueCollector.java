@@ -15,22 +15,31 @@
  */
 package org.craftforge.jira.jql.linkedissues.collectors;
 
-import com.atlassian.jira.issue.Issue;
-import com.atlassian.jira.issue.link.LinkCollection;
-import java.util.Collection;
-import java.util.Collections;
+import org.craftforge.jira.jql.ids.IssueIdList;
+import org.craftforge.jira.jql.linkedissues.BulkIssueLinkLoader;
 
 /**
  *
  * @author pbojko
  */
-public class NoSpecificLinkedIssueCollector implements LinkedIssueCollector {
+public class NoSpecificLinkedIssueCollector extends AbstractLinkedIssueCollector {
 
-	public Collection<Issue> collectIfNeeded(String relation, String direction, LinkCollection linkCollection) {
+	private static final String INWARD_DRIRECTION = "Inward";
+
+	private static final String OUTWARD_DRIRECTION = "Outward";
+
+	/**
+	 * Follows links of any type, in the given direction or, if there is none, in both.
+	 */
+	public void collectIfNeeded(String relation, String direction, BulkIssueLinkLoader loader, IssueIdList sourceIds,
+			IssueIdList result) {
 		if (relation == null) {
-			return linkCollection.getAllIssues();
-		} else {
-			return Collections.<Issue>emptyList();
+			if (direction == null || direction.equalsIgnoreCase(INWARD_DRIRECTION)) {
+				collect(loader, sourceIds, null, true, result);
+			}
+			if (direction == null || direction.equalsIgnoreCase(OUTWARD_DRIRECTION)) {
+				collect(loader, sourceIds, null, false, result);
+			}
 		}
 	}
 	
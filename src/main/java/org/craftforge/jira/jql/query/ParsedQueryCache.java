@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 Craftware Sp. z o.o..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.craftforge.jira.jql.query;
+
+import com.atlassian.jira.ComponentManager;
+import com.atlassian.jira.ext.jabbernotifier.metrics.Metrics;
+import com.atlassian.jira.jql.parser.DefaultJqlQueryParser;
+import com.atlassian.jira.jql.parser.JqlParseException;
+import com.atlassian.jira.jql.parser.JqlQueryParser;
+import com.atlassian.query.Query;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parsed JQL subqueries, shared by all the *FromQuery functions, so that the
+ * same subquery is parsed once rather than on every evaluation. Queries are
+ * immutable, so one instance can serve every caller. The least recently used of
+ * {@link #MAX_ENTRIES} queries is dropped first; strings that fail to parse are
+ * not kept.
+ * <p>
+ * Hits, misses and evictions are published as the "jqlParsedQueryCache" metrics,
+ * which {@link #stop()} releases when the plugin is disabled.
+ *
+ * @author pbojko
+ */
+public class ParsedQueryCache {
+
+	private static final ParsedQueryCache INSTANCE = new ParsedQueryCache();
+
+	static final int MAX_ENTRIES = 500;
+
+	static final String METRICS_NAME = "jqlParsedQueryCache";
+
+	// guarded by this
+	private final Map<String, Query> queries = new LinkedHashMap<String, Query>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+			if (size() > MAX_ENTRIES) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private volatile JqlQueryParser parser;
+
+	private final AtomicLong hits;
+
+	private final AtomicLong misses;
+
+	private final AtomicLong evictions;
+
+	ParsedQueryCache() {
+		Metrics metrics = Metrics.forComponent(METRICS_NAME);
+		hits = metrics.counter("hits");
+		misses = metrics.counter("misses");
+		evictions = metrics.counter("evictions");
+	}
+
+	public static ParsedQueryCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Drops every entry and the parser, and releases the metrics, so that a
+	 * disabled plugin leaves nothing behind.
+	 */
+	public synchronized void stop() {
+		queries.clear();
+		parser = null;
+		Metrics.release(METRICS_NAME);
+	}
+
+	public Query parse(String jql) throws JqlParseException {
+		String key = normalize(jql);
+		synchronized (this) {
+			Query query = queries.get(key);
+			if (query != null) {
+				hits.incrementAndGet();
+				return query;
+			}
+		}
+		misses.incrementAndGet();
+		// parsed outside the lock; two callers may parse the same string at once
+		Query query = getParser().parseQuery(jql);
+		synchronized (this) {
+			queries.put(key, query);
+		}
+		return query;
+	}
+
+	/**
+	 * Uses JIRA's parser, or a parser of our own where there is none.
+	 */
+	private JqlQueryParser getParser() {
+		JqlQueryParser result = parser;
+		if (result == null) {
+			result = ComponentManager.getComponentInstanceOfType(JqlQueryParser.class);
+			if (result == null) {
+				result = new DefaultJqlQueryParser();
+			}
+			parser = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Trims the string and collapses runs of whitespace outside quoted values, so
+	 * that subqueries differing only in layout share an entry. A backslash escapes
+	 * the next character, inside quotes or not, so an escaped quote opens or closes
+	 * nothing and an escaped space is kept.
+	 */
+	static String normalize(String jql) {
+		StringBuilder result = new StringBuilder(jql.length());
+		char quote = 0;
+		boolean pendingSpace = false;
+		for (int i = 0; i < jql.length(); i++) {
+			char c = jql.charAt(i);
+			if (c == '\\' && i + 1 < jql.length()) {
+				if (pendingSpace) {
+					result.append(' ');
+					pendingSpace = false;
+				}
+				result.append(c).append(jql.charAt(++i));
+				continue;
+			}
+			if (quote == 0 && Character.isWhitespace(c)) {
+				pendingSpace = result.length() > 0;
+				continue;
+			}
+			if (pendingSpace) {
+				result.append(' ');
+				pendingSpace = false;
+			}
+			result.append(c);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			}
+		}
+		return result.toString();
+	}
+}
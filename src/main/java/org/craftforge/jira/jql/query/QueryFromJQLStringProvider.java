@@ -16,8 +16,6 @@
 package org.craftforge.jira.jql.query;
 
 import com.atlassian.crowd.embedded.api.User;
-import com.atlassian.jira.jql.parser.DefaultJqlQueryParser;
-import com.atlassian.jira.jql.parser.JqlQueryParser;
 import com.atlassian.query.Query;
 
 /**
@@ -26,14 +24,14 @@ import com.atlassian.query.Query;
  */
 public class QueryFromJQLStringProvider implements QueryProvider {
 	
-	private JqlQueryParser parser;
+	private ParsedQueryCache parsedQueries;
 
 	public QueryFromJQLStringProvider() {
-		this.parser = new DefaultJqlQueryParser();
+		this.parsedQueries = ParsedQueryCache.getInstance();
 	}
 
 	public Query provide(User user, String buildingStr) throws Exception {
-		return parser.parseQuery(buildingStr);
+		return parsedQueries.parse(buildingStr);
 	}
 	
 }
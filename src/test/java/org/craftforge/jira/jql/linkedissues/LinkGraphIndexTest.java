@@ -0,0 +1,195 @@
+/*
+ * Copyright 2012 Craftware Sp. z o.o..
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.craftforge.jira.jql.linkedissues;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.craftforge.jira.jql.ids.IssueIdList;
+import org.junit.Test;
+
+/**
+ * The compressed link arrays and the pending changes kept on top of them.
+ *
+ * @author pbojko
+ */
+public class LinkGraphIndexTest {
+
+	@Test
+	public void adjacencyGroupsSortedNeighboursByKey() {
+		LinkGraphIndex.Adjacency adjacency = new LinkGraphIndex.Adjacency(new long[] {3, 1, 3, 2, 3},
+				new long[] {32, 10, 30, 20, 31});
+
+		assertEquals(5, adjacency.size());
+		assertEquals(Arrays.asList(30L, 31L, 32L), collect(adjacency, 3, null));
+		assertEquals(Arrays.asList(10L), collect(adjacency, 1, null));
+		assertEquals(Collections.<Long>emptyList(), collect(adjacency, 4, null));
+		assertTrue(adjacency.contains(3, 31));
+		assertFalse(adjacency.contains(3, 20));
+		assertFalse(adjacency.contains(4, 30));
+	}
+
+	@Test
+	public void adjacencySkipsRemovedNeighbours() {
+		LinkGraphIndex.Adjacency adjacency = new LinkGraphIndex.Adjacency(new long[] {1, 1, 1}, new long[] {10, 11, 12});
+
+		assertEquals(Arrays.asList(10L, 12L), collect(adjacency, 1, new HashSet<Long>(Arrays.asList(11L))));
+	}
+
+	@Test
+	public void emptyAdjacency() {
+		LinkGraphIndex.Adjacency adjacency = new LinkGraphIndex.Adjacency(new long[0], new long[0]);
+
+		assertEquals(0, adjacency.size());
+		assertFalse(adjacency.contains(1, 2));
+		assertEquals(Collections.<Long>emptyList(), collect(adjacency, 1, null));
+	}
+
+	@Test
+	public void sizeCountsPendingChanges() {
+		LinkGraphIndex.LinkTypeGraph graph = new LinkGraphIndex.LinkTypeGraph(new long[] {1, 2}, new long[] {10, 20});
+
+		graph.add(3, 30);
+		assertEquals(3, graph.size());
+		graph.remove(1, 10);
+		assertEquals(2, graph.size());
+		assertEquals(2, graph.pendingChanges());
+	}
+
+	@Test
+	public void repeatedChangesAreAppliedOnce() {
+		LinkGraphIndex.LinkTypeGraph graph = new LinkGraphIndex.LinkTypeGraph(new long[] {1}, new long[] {10});
+
+		graph.add(1, 10);
+		graph.remove(2, 20);
+		assertEquals(0, graph.pendingChanges());
+		assertEquals(1, graph.size());
+
+		graph.add(3, 30);
+		graph.add(3, 30);
+		graph.remove(3, 30);
+		assertEquals(0, graph.pendingChanges());
+		assertEquals(1, graph.size());
+
+		graph.remove(1, 10);
+		graph.remove(1, 10);
+		graph.add(1, 10);
+		assertEquals(0, graph.pendingChanges());
+		assertEquals(Arrays.asList(10L), collect(graph, 1, false));
+	}
+
+	@Test
+	public void compactMergesPendingChanges() {
+		LinkGraphIndex.LinkTypeGraph graph = new LinkGraphIndex.LinkTypeGraph(new long[] {1, 1, 2}, new long[] {10, 11, 20});
+		graph.add(1, 12);
+		graph.add(3, 10);
+		graph.remove(1, 10);
+
+		graph.compact();
+
+		assertEquals(0, graph.pendingChanges());
+		assertEquals(4, graph.size());
+		assertEquals(Arrays.asList(11L, 12L), collect(graph, 1, false));
+		assertEquals(Arrays.asList(3L), collect(graph, 10, true));
+		assertEquals(Arrays.asList(1L), collect(graph, 11, true));
+	}
+
+	@Test
+	public void followsRandomChangesInBothDirections() {
+		Random random = new Random(1);
+		Set<List<Long>> links = new HashSet<List<Long>>();
+		while (links.size() < 2000) {
+			links.add(Arrays.asList((long) random.nextInt(300), (long) random.nextInt(300)));
+		}
+		IssueIdList sources = new IssueIdList();
+		IssueIdList destinations = new IssueIdList();
+		for (List<Long> link : links) {
+			sources.add(link.get(0));
+			destinations.add(link.get(1));
+		}
+		LinkGraphIndex.LinkTypeGraph graph = new LinkGraphIndex.LinkTypeGraph(sources.toArray(), destinations.toArray());
+
+		for (int i = 0; i < 5000; i++) {
+			long source = random.nextInt(300);
+			long destination = random.nextInt(300);
+			if (random.nextBoolean()) {
+				graph.add(source, destination);
+				links.add(Arrays.asList(source, destination));
+			} else {
+				graph.remove(source, destination);
+				links.remove(Arrays.asList(source, destination));
+			}
+			if (i % 1000 == 999) {
+				graph.compact();
+			}
+			if (i % 250 == 0) {
+				assertSameLinks(links, graph);
+			}
+		}
+		assertSameLinks(links, graph);
+	}
+
+	private static void assertSameLinks(Set<List<Long>> links, LinkGraphIndex.LinkTypeGraph graph) {
+		assertEquals(links.size(), graph.size());
+		for (long id = 0; id < 300; id++) {
+			List<Long> outward = new ArrayList<Long>();
+			List<Long> inward = new ArrayList<Long>();
+			for (List<Long> link : links) {
+				if (link.get(0) == id) {
+					outward.add(link.get(1));
+				}
+				if (link.get(1) == id) {
+					inward.add(link.get(0));
+				}
+			}
+			Collections.sort(outward);
+			Collections.sort(inward);
+			assertEquals(outward, collect(graph, id, false));
+			assertEquals(inward, collect(graph, id, true));
+		}
+	}
+
+	private static List<Long> collect(LinkGraphIndex.Adjacency adjacency, long from, Set<Long> removed) {
+		IssueIdList result = new IssueIdList();
+		adjacency.collect(from, removed, result);
+		return sorted(result);
+	}
+
+	private static List<Long> collect(LinkGraphIndex.LinkTypeGraph graph, long from, boolean inward) {
+		IssueIdList sourceIds = new IssueIdList();
+		sourceIds.add(from);
+		IssueIdList result = new IssueIdList();
+		graph.collect(sourceIds, inward, result);
+		return sorted(result);
+	}
+
+	private static List<Long> sorted(IssueIdList ids) {
+		List<Long> result = new ArrayList<Long>(ids.size());
+		for (int i = 0; i < ids.size(); i++) {
+			result.add(ids.get(i));
+		}
+		Collections.sort(result);
+		return result;
+	}
+}